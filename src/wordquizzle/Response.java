@@ -1,15 +1,23 @@
 package wordquizzle;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
 public enum Response {
 	REGISTRATION_SUCCESS    ("REGISTRATION_SUCCESS", "You have been succesfully registered"),
 	ADDFRIEND_SUCCESS       ("ADDFRIEND_SUCCESS:%s:%s", "Friendship between %s and %s created"),
 	LOGIN_SUCCESS           ("LOGIN_SUCCESS:%s", "Welcome back %s"),
+	BYE                     ("Bye %s", "Bye %s"),
 	SET_STATE               ("SET_STATE:%s", ""),
 	QUIT_CHALLENGE			("QUIT_CHALLENGE:%s", "User %s has quit the challenge"),
 	BEGIN_CHALLENGE         ("BEGIN_CHALLENGE", "Let the challenge begin"),
 	SEND_WORD               ("SEND_WORD:%d:%d:%s", "Word %d of %d: %s"),
 	FRIENDLIST              ("FRIENDLIST:%s", ""),
 	LEADERBOARD             ("LEADERBOARD:%s", ""),
+	FRIENDLIST_PAGE         ("FRIENDLIST_PAGE:%s", ""),
+	LEADERBOARD_PAGE        ("LEADERBOARD_PAGE:%s", ""),
+	NOT_MODIFIED            ("NOT_MODIFIED:%s:%d:%d", ""),
 	SCORE                   ("SCORE:%d", "Score: %d"),
 	FINISH_CHALLENGE        ("FINISH_CHALLENGE", ""),
 	GAME_FINISHED           ("GAME_FINISHED", "You've answered to all the words and must wait for the opponent to finish"),
@@ -29,16 +37,42 @@ public enum Response {
 	NOUSERNAME_FAILURE      ("NOUSERNAME_FAILURE", "You must specify a username"),
 	NOUSERPASS_FAILURE      ("NOUSERPASS_FAILURE", "You must specify a username and a password"),
 	ALREADYLOGGEDIN_FAILURE ("ALREADYLOGGEDIN_FAILURE:%s", "User %s is already online"),
+	PING                    ("PING", ""),
+	PONG                    ("PONG", ""),
+	SERVER_BUSY             ("SERVER_BUSY", "The server is busy, try again later"),
 	INVALID_COMMAND         ("INVALID_COMMAND", "Invalid command");
 
  
 	private String code;
     private String response;
+	//The code compiled into UTF-8 literals around typed slots ('s' or 'd'), there's one more literal than slots
+	//and the last one ends with the delimiter
+	private byte[][] literals;
+	private char[] slots;
  
     Response(String code, String response) {
 		this.code = code;
 		this.response = response;
-		
+		compile();
+	}
+
+	/**
+	 * Splits the code in the literals and the slots they're around.
+	 */
+	private void compile() {
+		ArrayList<byte[]> literals = new ArrayList<>();
+		StringBuilder slots = new StringBuilder();
+		int start = 0;
+		for (int i = 0; i < code.length() - 1; i++) {
+			char next = code.charAt(i + 1);
+			if (code.charAt(i) != '%' || (next != 's' && next != 'd')) continue;
+			literals.add(code.substring(start, i).getBytes(StandardCharsets.UTF_8));
+			slots.append(next);
+			start = ++i + 1;
+		}
+		literals.add((code.substring(start) + "\n").getBytes(StandardCharsets.UTF_8));
+		this.literals = literals.toArray(new byte[literals.size()][]);
+		this.slots = slots.toString().toCharArray();
 	}
 	
 	public String getCode() {
@@ -48,6 +82,154 @@ public enum Response {
 	public String getCode(Object... obj) {
 		return String.format(code, obj);
 	}
+
+	/**
+	 * Returns the length in bytes of the code encoded by {@link #encode}, the delimiter included.
+	 * The {@code %s} slots are filled with {@code s0} and {@code s1} and the {@code %d} slots with {@code d0},
+	 * {@code d1} and {@code d2}, in order, the arguments without a slot are ignored.
+	 * @param s0 the first string argument.
+	 * @param s1 the second string argument.
+	 * @param d0 the first integer argument.
+	 * @param d1 the second integer argument.
+	 * @param d2 the third integer argument.
+	 * @return the length in bytes of the encoded code.
+	 */
+	public int encodedLength(String s0, String s1, int d0, int d1, int d2) {
+		int length = 0;
+		int strings = 0;
+		int ints = 0;
+		for (int i = 0; i < slots.length; i++) {
+			length += literals[i].length;
+			if (slots[i] == 's') length += utf8Length(strings++ == 0 ? s0 : s1);
+			else length += intLength(select(ints++, d0, d1, d2));
+		}
+		return length + literals[slots.length].length;
+	}
+
+	/**
+	 * Encodes the code, followed by the delimiter, into {@code buffer} as UTF-8 without going through a
+	 * {@code String}. The arguments fill the slots like in {@link #encodedLength}.
+	 * @param buffer the buffer, it must have at least {@link #encodedLength} bytes remaining.
+	 * @param s0 the first string argument.
+	 * @param s1 the second string argument.
+	 * @param d0 the first integer argument.
+	 * @param d1 the second integer argument.
+	 * @param d2 the third integer argument.
+	 */
+	public void encode(ByteBuffer buffer, String s0, String s1, int d0, int d1, int d2) {
+		int strings = 0;
+		int ints = 0;
+		for (int i = 0; i < slots.length; i++) {
+			buffer.put(literals[i]);
+			if (slots[i] == 's') putUTF8(buffer, strings++ == 0 ? s0 : s1);
+			else putInt(buffer, select(ints++, d0, d1, d2));
+		}
+		buffer.put(literals[slots.length]);
+	}
+
+	/**
+	 * Returns the length in bytes of the code before its first slot.
+	 * @return the length in bytes of the head of the code.
+	 */
+	public int headLength() {
+		return literals[0].length;
+	}
+
+	/**
+	 * Encodes the code before its first slot into {@code buffer}, for the responses whose argument is streamed
+	 * straight after it, see {@link #encodeTail}.
+	 * @param buffer the buffer, it must have at least {@link #headLength} bytes remaining.
+	 */
+	public void encodeHead(ByteBuffer buffer) {
+		buffer.put(literals[0]);
+	}
+
+	/**
+	 * Returns the length in bytes of the code after its last slot, the delimiter included.
+	 * @return the length in bytes of the tail of the code.
+	 */
+	public int tailLength() {
+		return literals[slots.length].length;
+	}
+
+	/**
+	 * Encodes the code after its last slot, followed by the delimiter, into {@code buffer}.
+	 * @param buffer the buffer, it must have at least {@link #tailLength} bytes remaining.
+	 */
+	public void encodeTail(ByteBuffer buffer) {
+		buffer.put(literals[slots.length]);
+	}
+
+	private static int select(int index, int d0, int d1, int d2) {
+		return index == 0 ? d0 : index == 1 ? d1 : d2;
+	}
+
+	/**
+	 * Returns the number of characters of {@code value} in decimal, sign included.
+	 */
+	private static int intLength(int value) {
+		long abs = Math.abs((long)value);
+		int length = value < 0 ? 2 : 1;
+		while (abs >= 10) {
+			abs /= 10;
+			length++;
+		}
+		return length;
+	}
+
+	private static void putInt(ByteBuffer buffer, int value) {
+		long abs = Math.abs((long)value);
+		if (value < 0) buffer.put((byte)'-');
+		long divisor = 1;
+		while (abs / divisor >= 10) divisor *= 10;
+		for (; divisor > 0; divisor /= 10) buffer.put((byte)('0' + abs / divisor % 10));
+	}
+
+	/**
+	 * Returns the length of {@code str} encoded as UTF-8, unpaired surrogates are replaced with {@code '?'} like
+	 * {@link String#getBytes} does.
+	 */
+	private static int utf8Length(String str) {
+		if (str == null) return 4;
+		int length = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) length++;
+			else if (c < 0x800) length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+				length += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(c)) length++;
+			else length += 3;
+		}
+		return length;
+	}
+
+	private static void putUTF8(ByteBuffer buffer, String str) {
+		if (str == null) str = "null";
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) buffer.put((byte)c);
+			else if (c < 0x800) {
+				buffer.put((byte)(0xC0 | c >> 6));
+				buffer.put((byte)(0x80 | c & 0x3F));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				buffer.put((byte)(0xF0 | cp >> 18));
+				buffer.put((byte)(0x80 | cp >> 12 & 0x3F));
+				buffer.put((byte)(0x80 | cp >> 6 & 0x3F));
+				buffer.put((byte)(0x80 | cp & 0x3F));
+			}
+			else if (Character.isSurrogate(c)) buffer.put((byte)'?');
+			else {
+				buffer.put((byte)(0xE0 | c >> 12));
+				buffer.put((byte)(0x80 | c >> 6 & 0x3F));
+				buffer.put((byte)(0x80 | c & 0x3F));
+			}
+		}
+	}
  
     public String getResponse(Object... obj) {
 		return String.format(response, obj);
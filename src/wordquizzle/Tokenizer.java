@@ -0,0 +1,165 @@
+package wordquizzle;
+
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+/**
+ * The {@code Tokenizer} class splits a message like {@code cmd:arg:arg} in its tokens, it replaces
+ * {@link java.util.Scanner} which is far too heavy for the job.
+ * <p>
+ * The tokenizer is just a cursor over the message: there's no regex and nothing is copied until a token is asked for
+ * as a {@code String}, numbers are parsed in place and tokens can be compared without being extracted.
+ * Like the {@code Scanner} it replaces, consecutive delimiters delimit an empty token while a trailing delimiter
+ * doesn't, and the {@code next} methods throw {@link NoSuchElementException} when there are no tokens left.
+ * A tokenizer can be reused for another message, see {@link #reset(CharSequence)}.
+ */
+public class Tokenizer {
+	private CharSequence msg;
+	private final char delimiter;
+	//Where the next token begins
+	private int position = 0;
+
+	/**
+	 * Constructs a tokenizer splitting {@code msg} on {@code ':'}.
+	 * @param msg the message.
+	 */
+	public Tokenizer(CharSequence msg) {
+		this(msg, ':');
+	}
+
+	/**
+	 * Constructs a tokenizer splitting {@code msg} on {@code delimiter}.
+	 * @param msg       the message.
+	 * @param delimiter the delimiter.
+	 */
+	public Tokenizer(CharSequence msg, char delimiter) {
+		this.msg = msg;
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * Makes the tokenizer split {@code msg} from its beginning.
+	 * @param msg the message.
+	 * @return this tokenizer.
+	 */
+	public Tokenizer reset(CharSequence msg) {
+		this.msg = msg;
+		this.position = 0;
+		return this;
+	}
+
+	/**
+	 * Returns {@code true} iff there's another token.
+	 * @return {@code true} iff there's another token.
+	 */
+	public boolean hasNext() {
+		return position < msg.length();
+	}
+
+	/**
+	 * Returns where the next token ends.
+	 */
+	private int tokenEnd() {
+		if (!hasNext()) throw new NoSuchElementException();
+		int end = position;
+		while (end < msg.length() && msg.charAt(end) != delimiter) end++;
+		return end;
+	}
+
+	/**
+	 * Moves past the token ending at {@code end} and its delimiter.
+	 */
+	private void consume(int end) {
+		position = Math.min(end + 1, msg.length());
+	}
+
+	/**
+	 * Returns the next token.
+	 * @return the next token.
+	 * @throws NoSuchElementException if there are no tokens left.
+	 */
+	public String next() {
+		int end = tokenEnd();
+		String token = msg.subSequence(position, end).toString();
+		consume(end);
+		return token;
+	}
+
+	/**
+	 * Skips the next token.
+	 * @throws NoSuchElementException if there are no tokens left.
+	 */
+	public void skip() {
+		consume(tokenEnd());
+	}
+
+	/**
+	 * Returns {@code true} and moves past the next token iff it's equal to {@code token}, otherwise the tokenizer
+	 * is left as it is.
+	 * @param token the expected token.
+	 * @return {@code true} iff the next token is {@code token}.
+	 */
+	public boolean nextEquals(CharSequence token) {
+		if (!hasNext()) return false;
+		int end = tokenEnd();
+		if (end - position != token.length()) return false;
+		for (int i = 0; i < token.length(); i++)
+			if (msg.charAt(position + i) != token.charAt(i)) return false;
+		consume(end);
+		return true;
+	}
+
+	/**
+	 * Returns the next token as an {@code int}.
+	 * @return the next token as an {@code int}.
+	 * @throws InputMismatchException if the next token isn't a valid {@code int}, it isn't consumed.
+	 * @throws NoSuchElementException if there are no tokens left.
+	 */
+	public int nextInt() {
+		return (int)nextNumber(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the next token as a {@code long}.
+	 * @return the next token as a {@code long}.
+	 * @throws InputMismatchException if the next token isn't a valid {@code long}, it isn't consumed.
+	 * @throws NoSuchElementException if there are no tokens left.
+	 */
+	public long nextLong() {
+		return nextNumber(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Parses the next token as an integer between {@code min} and {@code max}, consuming it only if it's valid.
+	 */
+	private long nextNumber(long min, long max) {
+		int end = tokenEnd();
+		int i = position;
+		boolean negative = i < end && msg.charAt(i) == '-';
+		if (negative) i++;
+		if (i == end) throw new InputMismatchException();
+		//Accumulate negatively so that the minimum fits
+		long limit = negative ? min : -max;
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = msg.charAt(i) - '0';
+			if (digit < 0 || digit > 9) throw new InputMismatchException();
+			if (value < (limit + digit) / 10) throw new InputMismatchException();
+			value = value * 10 - digit;
+		}
+		consume(end);
+		return negative ? value : -value;
+	}
+
+	/**
+	 * Returns everything after the current position, delimiters included, e.g. a JSON argument.
+	 * @return the rest of the message.
+	 * @throws NoSuchElementException if there are no tokens left.
+	 */
+	public String rest() {
+		if (!hasNext()) throw new NoSuchElementException();
+		String rest = msg.subSequence(position, msg.length()).toString();
+		position = msg.length();
+		return rest;
+	}
+}
@@ -0,0 +1,69 @@
+package wordquizzle.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.LongSupplier;
+
+/**
+ * The {@code Bench} class holds the harness shared by the micro benchmarks which compare two or more ways of doing
+ * the same work.
+ * <p>
+ * Each body runs one iteration of the work and returns a value derived from its results, which is accumulated so that
+ * the JIT can't throw the work away. Every round runs each body {@code iterations} times; after as many warmup rounds,
+ * the time and, on HotSpot, the bytes allocated per operation are printed. The benchmarks take the same arguments:
+ * <pre>
+ * java wordquizzle.bench.&lt;Bench&gt; [iterations] [rounds]
+ * </pre>
+ */
+final class Bench {
+
+	//Keeps the JIT from throwing the results away
+	private static long sink = 0;
+
+	private Bench() {}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread, or {@code -1} if the JVM can't tell.
+	 */
+	private static long allocatedBytes() {
+		try {
+			return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+			       Thread.currentThread().getId());
+		} catch (ClassCastException | UnsupportedOperationException e) {
+			return -1;
+		}
+	}
+
+	private static void run(String name, int width, LongSupplier body, int iterations, int operations, String unit,
+	                        boolean print) {
+		long bytes = allocatedBytes();
+		long begin = System.nanoTime();
+		for (int i = 0; i < iterations; i++) sink += body.getAsLong();
+		long elapsed = System.nanoTime() - begin;
+		long allocated = allocatedBytes() - bytes;
+		if (!print) return;
+		long total = (long)iterations * operations;
+		System.out.printf("%-" + width + "s %8.1f ns/%s %8d B/%s%n", name, (double)elapsed / total, unit,
+		                  bytes < 0 ? -1 : allocated / total, unit);
+	}
+
+	/**
+	 * Runs the benchmark described by the command line arguments {@code args}.
+	 * @param args       the command line arguments, the iterations and the rounds.
+	 * @param iterations the iterations of each round if not given.
+	 * @param operations the operations, e.g. messages, each iteration performs.
+	 * @param unit       the name of an operation, used in the output.
+	 * @param names      the names of the bodies.
+	 * @param bodies     the bodies, each running one iteration.
+	 */
+	static void compare(String[] args, int iterations, int operations, String unit, String[] names,
+	                    LongSupplier... bodies) {
+		if (args.length > 0) iterations = Integer.parseInt(args[0]);
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int width = 0;
+		for (String name : names) width = Math.max(width, name.length());
+		for (int round = 0; round < 2 * rounds; round++)
+			for (int i = 0; i < bodies.length; i++)
+				run(names[i], width, bodies[i], iterations, operations, unit, round >= rounds);
+		if (sink == 42) System.out.println();
+	}
+}
@@ -0,0 +1,77 @@
+package wordquizzle.bench;
+
+import wordquizzle.Tokenizer;
+import wordquizzle.wqserver.Command;
+
+/**
+ * The {@code DispatchBench} class compares resolving the command of a message with {@link Command#of(CharSequence)}
+ * and moving a reused {@link Tokenizer} past it, like the message handlers do, against extracting it and switching
+ * on it, like they used to.
+ * <p>
+ * Each iteration resolves a mix of valid and invalid commands, see {@link Bench} for the rounds and the output:
+ * <pre>
+ * java wordquizzle.bench.DispatchBench [iterations] [rounds]
+ * </pre>
+ */
+public class DispatchBench {
+
+	private static final String[] MESSAGES = {
+		"login:alice:secret:41234",
+		"mostra_punteggio",
+		"lista_amici",
+		"mostra_classifica",
+		"aggiungi_amico:bob",
+		"sfida:carol",
+		"yes",
+		"word:house",
+		"word:dog",
+		"word:tree",
+		"logout",
+		"bogus:command",
+	};
+
+	//Reused like the message handlers' one
+	private static final Tokenizer tokenizer = new Tokenizer("");
+
+	/**
+	 * Resolves the command by extracting it and switching on it.
+	 */
+	private static int switchCommand(String msg) {
+		switch (new Tokenizer(msg).next()) {
+			case "login": return 0;
+			case "logout": return 1;
+			case "lista_amici": return 2;
+			case "mostra_classifica": return 3;
+			case "mostra_punteggio": return 4;
+			case "aggiungi_amico": return 5;
+			case "sfida": return 6;
+			case "yes": return 7;
+			case "no": return 8;
+			case "close": return 9;
+			case "word": return 10;
+			default: return -1;
+		}
+	}
+
+	/**
+	 * Resolves the command with the perfect hash and moves the reused tokenizer to the arguments.
+	 */
+	private static int hashCommand(String msg) {
+		Command command = Command.of(msg);
+		if (command == null) return -1;
+		tokenizer.reset(msg).skip();
+		return command.ordinal() + (tokenizer.hasNext() ? 1 : 0);
+	}
+
+	public static void main(String[] args) {
+		Bench.compare(args, 1000000, MESSAGES.length, "msg", new String[] {"switch", "perfect hash"}, () -> {
+			long sink = 0;
+			for (String msg : MESSAGES) sink += switchCommand(msg);
+			return sink;
+		}, () -> {
+			long sink = 0;
+			for (String msg : MESSAGES) sink += hashCommand(msg);
+			return sink;
+		});
+	}
+}
@@ -0,0 +1,63 @@
+package wordquizzle.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import wordquizzle.Response;
+
+/**
+ * The {@code ResponseBench} class compares encoding the server's responses with {@link Response#encode} against
+ * formatting them with {@link Response#getCode}, appending the delimiter and copying the bytes, like the server used to.
+ * <p>
+ * Both write a mix of the most frequent responses into the same direct buffer, the whole mix each iteration, see
+ * {@link Bench} for the rounds and the output:
+ * <pre>
+ * java wordquizzle.bench.ResponseBench [iterations] [rounds]
+ * </pre>
+ */
+public class ResponseBench {
+
+	private static final int RESPONSES = 8;
+
+	private static final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+
+	private static void format(int i) {
+		String code;
+		switch (i) {
+			case 0: code = Response.SCORE.getCode(1250 + i); break;
+			case 1: code = Response.SET_STATE.getCode("IDLE"); break;
+			case 2: code = Response.LOGIN_SUCCESS.getCode("alice"); break;
+			case 3: code = Response.SEND_WORD.getCode(3, 10, "albero"); break;
+			case 4: code = Response.GAME_RESULT.getCode(7, 3, 11); break;
+			case 5: code = Response.ADDFRIEND_SUCCESS.getCode("alice", "bob"); break;
+			case 6: code = Response.INVALID_COMMAND.getCode(); break;
+			default: code = Response.WAITINGRESPONSE.getCode(); break;
+		}
+		buffer.put(new String(code + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void encode(int i) {
+		switch (i) {
+			case 0: Response.SCORE.encode(buffer, null, null, 1250 + i, 0, 0); break;
+			case 1: Response.SET_STATE.encode(buffer, "IDLE", null, 0, 0, 0); break;
+			case 2: Response.LOGIN_SUCCESS.encode(buffer, "alice", null, 0, 0, 0); break;
+			case 3: Response.SEND_WORD.encode(buffer, "albero", null, 3, 10, 0); break;
+			case 4: Response.GAME_RESULT.encode(buffer, null, null, 7, 3, 11); break;
+			case 5: Response.ADDFRIEND_SUCCESS.encode(buffer, "alice", "bob", 0, 0, 0); break;
+			case 6: Response.INVALID_COMMAND.encode(buffer, null, null, 0, 0, 0); break;
+			default: Response.WAITINGRESPONSE.encode(buffer, null, null, 0, 0, 0); break;
+		}
+	}
+
+	public static void main(String[] args) {
+		Bench.compare(args, 500000, RESPONSES, "response", new String[] {"format", "encode"}, () -> {
+			buffer.clear();
+			for (int j = 0; j < RESPONSES; j++) format(j);
+			return buffer.position();
+		}, () -> {
+			buffer.clear();
+			for (int j = 0; j < RESPONSES; j++) encode(j);
+			return buffer.position();
+		});
+	}
+}
@@ -0,0 +1,104 @@
+package wordquizzle.bench;
+
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+import wordquizzle.Tokenizer;
+
+/**
+ * The {@code TokenizerBench} class compares {@link Tokenizer} with the {@link Scanner} it replaced, on the mix of
+ * messages the server and the clients parse during a game.
+ * <p>
+ * Both parse every message the way the message handlers do: the command, then its arguments as strings or numbers.
+ * Each iteration parses the whole mix, see {@link Bench} for the rounds and the output:
+ * <pre>
+ * java wordquizzle.bench.TokenizerBench [iterations] [rounds]
+ * </pre>
+ */
+public class TokenizerBench {
+
+	private static final String[] MESSAGES = {
+		"login:alice:secret:41234",
+		"mostra_punteggio",
+		"lista_amici",
+		"mostra_classifica",
+		"aggiungi_amico:bob",
+		"sfida:carol",
+		"word:house",
+		"word:dog",
+		"word:tree",
+		"SET_STATE:IN_GAME",
+		"SEND_WORD:3:10:albero",
+		"SCORE:125",
+		"GAME_RESULT:7:3:11",
+		"FRIENDLIST:[\"bob\",\"carol\"]",
+	};
+
+	/**
+	 * Parses {@code msg} with a {@code Scanner} like the message handlers used to.
+	 */
+	private static long scanner(String msg) {
+		Scanner scanner = new Scanner(msg).useDelimiter(":");
+		String cmd = scanner.next();
+		long sink = cmd.length();
+		try {
+			switch (cmd) {
+				case "SEND_WORD":
+				case "GAME_RESULT":
+				case "SCORE":
+					while (scanner.hasNext()) {
+						if (scanner.hasNextInt()) sink += scanner.nextInt();
+						else sink += scanner.next().length();
+					}
+					break;
+				case "FRIENDLIST":
+					sink += scanner.nextLine().substring(1).length();
+					break;
+				default:
+					while (scanner.hasNext()) sink += scanner.next().length();
+			}
+		} catch (NoSuchElementException e) {/*discard*/}
+		scanner.close();
+		return sink;
+	}
+
+	/**
+	 * Parses {@code msg} with a {@code Tokenizer} like the message handlers do.
+	 */
+	private static long tokenizer(String msg) {
+		Tokenizer tokenizer = new Tokenizer(msg);
+		String cmd = tokenizer.next();
+		long sink = cmd.length();
+		switch (cmd) {
+			case "SEND_WORD":
+			case "GAME_RESULT":
+			case "SCORE":
+				while (tokenizer.hasNext()) {
+					try {
+						sink += tokenizer.nextInt();
+					} catch (NoSuchElementException e) {
+						sink += tokenizer.next().length();
+					}
+				}
+				break;
+			case "FRIENDLIST":
+				sink += tokenizer.rest().length();
+				break;
+			default:
+				while (tokenizer.hasNext()) sink += tokenizer.next().length();
+		}
+		return sink;
+	}
+
+	public static void main(String[] args) {
+		Bench.compare(args, 200000, MESSAGES.length, "msg", new String[] {"Scanner", "Tokenizer"}, () -> {
+			long sink = 0;
+			for (String msg : MESSAGES) sink += scanner(msg);
+			return sink;
+		}, () -> {
+			long sink = 0;
+			for (String msg : MESSAGES) sink += tokenizer(msg);
+			return sink;
+		});
+	}
+}
@@ -0,0 +1,158 @@
+package wordquizzle.bench;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import wordquizzle.WQRegisterInterface.UserAlreadyExists;
+import wordquizzle.wqserver.RegisterServerHandler;
+import wordquizzle.wqserver.WQServer;
+
+/**
+ * The {@code TransportBench} class compares the server transports (see {@code wq.net.transport}).
+ * <p>
+ * The server is started inside the benchmark's JVM, then {@code clients} connections log in and each one sends
+ * {@code requests} score requests back to back, waiting for every reply. Throughput, latency percentiles and the heap
+ * and platform threads taken by the logged in connections are printed. Run it once per transport from a scratch
+ * directory containing {@code dict.txt}, since the benchmark users are registered in the database found there:
+ * <pre>
+ * java -Dwq.net.transport=reactor wordquizzle.bench.TransportBench 5555 1000 1000
+ * java -Dwq.net.transport=threads wordquizzle.bench.TransportBench 5555 1000 1000
+ * </pre>
+ */
+public class TransportBench {
+
+	private static final byte[] REQUEST = "mostra_punteggio\n".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * A benchmark client with blocking I/O.
+	 */
+	private static class Client {
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private byte[] line = new byte[256];
+
+		Client(int port) throws IOException {
+			socket = new Socket("127.0.0.1", port);
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream(), 256);
+			out = socket.getOutputStream();
+		}
+
+		/**
+		 * Reads lines until one starting with {@code prefix}.
+		 */
+		void expect(String prefix) throws IOException {
+			while (true) {
+				int length = 0;
+				int b;
+				while ((b = in.read()) != '\n') {
+					if (b < 0) throw new IOException("connection closed");
+					if (length < line.length) line[length++] = (byte)b;
+				}
+				if (new String(line, 0, length, StandardCharsets.UTF_8).startsWith(prefix)) return;
+			}
+		}
+
+		void send(byte[] data) throws IOException {
+			out.write(data);
+		}
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: TransportBench <port> [clients] [requests per client]");
+			System.exit(1);
+		}
+		final int port = Integer.parseInt(args[0]);
+		final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		final int requests = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		String transport = System.getProperty("wq.net.transport", "reactor");
+
+		//Start the server and wait until it accepts connections
+		Thread server = new Thread(() -> WQServer.main(new String[] {Integer.toString(port)}), "server");
+		server.setDaemon(true);
+		server.start();
+		while (true) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				break;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+
+		RegisterServerHandler registration = new RegisterServerHandler();
+		for (int i = 0; i < clients; i++) {
+			try {
+				registration.register("bench" + i, "bench");
+			} catch (UserAlreadyExists e) {/*registered by a previous run*/}
+		}
+
+		//Log every client in and measure what the connections cost
+		long heapBefore = usedHeap();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		Client[] connections = new Client[clients];
+		for (int i = 0; i < clients; i++) {
+			connections[i] = new Client(port);
+			connections[i].send(("login:bench" + i + ":bench:0\n").getBytes(StandardCharsets.UTF_8));
+			connections[i].expect("LOGIN_SUCCESS");
+		}
+		long heapAfter = usedHeap();
+		int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		//Every client sends its requests one at a time
+		final long[][] latencies = new long[clients][requests];
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(clients);
+		for (int i = 0; i < clients; i++) {
+			final int id = i;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for (int j = 0; j < requests; j++) {
+						long sent = System.nanoTime();
+						connections[id].send(REQUEST);
+						connections[id].expect("SCORE");
+						latencies[id][j] = System.nanoTime() - sent;
+					}
+				} catch (InterruptedException | IOException e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+		System.out.printf("transport %s, %d clients x %d requests%n", transport, clients, requests);
+		System.out.printf("throughput %.0f requests/s%n", all.length / (elapsed / 1e9));
+		System.out.printf("latency us p50 %d p99 %d p99.9 %d max %d%n", all[all.length / 2] / 1000,
+		                  all[(int)(all.length * 0.99)] / 1000, all[(int)(all.length * 0.999)] / 1000,
+		                  all[all.length - 1] / 1000);
+		System.out.printf("heap per connection %d bytes (clients included), platform threads %d -> %d%n",
+		                  (heapAfter - heapBefore) / clients, threadsBefore, threadsAfter);
+
+		for (Client client : connections) client.send("logout\n".getBytes(StandardCharsets.UTF_8));
+		System.exit(0);
+	}
+}
@@ -0,0 +1,117 @@
+package wordquizzle.wqclient;
+
+import java.util.HashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * The {@code PageCache} class keeps the pages of the friendlist and of the leaderboard received from the server, as
+ * a Singleton.
+ * <p>
+ * Pages are requested with {@code cmd:offset:limit:version}, where the version is the one of the cached page if
+ * there's one, so that the server can answer {@code NOT_MODIFIED} and the cached page is shown again instead.
+ * The cache must be cleared when the user logs out, since versions only make sense for the same user.
+ */
+public class PageCache {
+
+	/**
+	 * Number of entries requested per page.
+	 */
+	public static final int PAGE_SIZE = 20;
+
+	private static final PageCache cache = new PageCache();
+
+	private final Gson gson = new Gson();
+	//The pages by command and offset
+	private final HashMap<String, JsonObject> pages = new HashMap<>();
+	//The last page received for each command
+	private final HashMap<String, JsonObject> last = new HashMap<>();
+
+	private PageCache() {}
+
+	/**
+	 * Returns the page cache singleton.
+	 * @return the page cache singleton.
+	 */
+	public static PageCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Returns the request for page {@code page} of {@code command}, carrying the version of the cached page.
+	 * @param command the paged command.
+	 * @param page    the page, starting from 1.
+	 * @return the request to send to the server.
+	 */
+	public synchronized String request(String command, int page) {
+		int offset = (Math.max(page, 1) - 1) * PAGE_SIZE;
+		String request = command + ":" + offset + ":" + PAGE_SIZE;
+		JsonObject cached = pages.get(command + ":" + offset);
+		if (cached != null) request += ":" + cached.get("version").getAsLong();
+		return request;
+	}
+
+	/**
+	 * Returns the page of {@code command} following the last one received, or the first one after the last page.
+	 * @param command the paged command.
+	 * @return the page, starting from 1.
+	 */
+	public synchronized int nextPage(String command) {
+		JsonObject page = last.get(command);
+		if (page == null) return 1;
+		return getPage(page) % getPages(page) + 1;
+	}
+
+	/**
+	 * Parses and caches a page received from the server.
+	 * @param command the paged command the page was requested with.
+	 * @param json    the page.
+	 * @return the parsed page.
+	 */
+	public synchronized JsonObject store(String command, String json) {
+		JsonObject page = gson.fromJson(json, JsonObject.class);
+		pages.put(command + ":" + page.get("offset").getAsInt(), page);
+		last.put(command, page);
+		return page;
+	}
+
+	/**
+	 * Returns the cached page the server answered {@code NOT_MODIFIED} to.
+	 * @param command the paged command.
+	 * @param offset  the offset of the page.
+	 * @return the page or {@code null} if it's not cached.
+	 */
+	public synchronized JsonObject lookup(String command, int offset) {
+		JsonObject page = pages.get(command + ":" + offset);
+		if (page != null) last.put(command, page);
+		return page;
+	}
+
+	/**
+	 * Forgets all the pages.
+	 */
+	public synchronized void clear() {
+		pages.clear();
+		last.clear();
+	}
+
+	/**
+	 * Returns the number of {@code page}, starting from 1.
+	 * @param page the page.
+	 * @return the number of the page.
+	 */
+	public static int getPage(JsonObject page) {
+		return page.get("offset").getAsInt() / page.get("limit").getAsInt() + 1;
+	}
+
+	/**
+	 * Returns the number of pages {@code page} is one of.
+	 * @param page the page.
+	 * @return the number of pages, at least 1.
+	 */
+	public static int getPages(JsonObject page) {
+		int limit = page.get("limit").getAsInt();
+		return Math.max(1, (page.get("total").getAsInt() + limit - 1) / limit);
+	}
+}
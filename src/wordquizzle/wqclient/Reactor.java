@@ -12,6 +12,8 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 
+import wordquizzle.Response;
+
 /**
  * The {@code Reactor} abstract class handles all UDP and TCP traffic on behalf of the client
  */
@@ -120,8 +122,11 @@ public abstract class Reactor extends Thread {
 			//parse (split) the segment's content
 			while (!str.isEmpty()) {
 				int sep = str.indexOf("\n");
+				String msg = str.substring(0, sep);
 
-				handleRead(str.substring(0, sep));
+				//Answer the server's heartbeat, it's not for the user
+				if (msg.equals(Response.PING.getCode())) write("pong");
+				else if (!msg.equals(Response.PONG.getCode())) handleRead(msg);
 				
 				str = str.substring(sep + 1, str.length());
 			}
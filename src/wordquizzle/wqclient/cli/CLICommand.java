@@ -10,6 +10,7 @@ import wordquizzle.WQRegisterInterface;
 import wordquizzle.WQRegisterInterface.PasswordNotValid;
 import wordquizzle.WQRegisterInterface.UserAlreadyExists;
 import wordquizzle.WQRegisterInterface.UsernameNotValid;
+import wordquizzle.wqclient.PageCache;
 
 
 /**
@@ -68,20 +69,22 @@ class LoginCommand extends CLICommand {
 }
 
 /**
- * The {@code FriendList} class implements friendlist fetching.
+ * The {@code FriendList} class implements friendlist fetching, a page at a time.
  */
 class FriendListCommand extends CLICommand {
 	public void handle(Scanner scanner) {
-		CLIReactor.getReactor().write("lista_amici");
+		int page = scanner.hasNextInt() ? scanner.nextInt() : 1;
+		CLIReactor.getReactor().write(PageCache.getCache().request("lista_amici_pagina", page));
 	}
 }
 
 /**
- * The {@code LeaderboardCommand} class implements leaderboard fetching
+ * The {@code LeaderboardCommand} class implements leaderboard fetching, a page at a time.
  */
 class LeaderboardCommand extends CLICommand {
 	public void handle(Scanner scanner) {
-		CLIReactor.getReactor().write("mostra_classifica");
+		int page = scanner.hasNextInt() ? scanner.nextInt() : 1;
+		CLIReactor.getReactor().write(PageCache.getCache().request("mostra_classifica_pagina", page));
 	}
 }
 
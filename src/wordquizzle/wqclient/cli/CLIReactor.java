@@ -2,12 +2,13 @@ package wordquizzle.wqclient.cli;
 
 import java.net.InetSocketAddress;
 import java.util.NoSuchElementException;
-import java.util.Scanner;
 
 import com.google.gson.*;
 
 import wordquizzle.Response;
+import wordquizzle.Tokenizer;
 import wordquizzle.UserState;
+import wordquizzle.wqclient.PageCache;
 import wordquizzle.wqclient.Reactor;
 
 /**
@@ -33,16 +34,16 @@ public class CLIReactor extends Reactor {
 	}
 
 	public void handleRead(String msg) {
-		Scanner scannerstub = new Scanner(msg);
-		Scanner scanner = scannerstub.useDelimiter(":");
-		String code = scanner.next();
+		Tokenizer tokenizer = new Tokenizer(msg);
+		String code = tokenizer.next();
 		switch (code) {
 			// SET_STATE handling
 			case "SET_STATE":
-				String newState = scanner.next();
+				String newState = tokenizer.next();
 				switch (newState) {
 					case "OFFLINE":
 						WQClient.state = UserState.OFFLINE;
+						PageCache.getCache().clear();
 						break;
 					case "IDLE":
 						WQClient.state = UserState.IDLE;
@@ -67,21 +68,21 @@ public class CLIReactor extends Reactor {
 				System.out.println(Response.BEGIN_CHALLENGE.getResponse());
 				break;
 			case "ADDFRIEND_SUCCESS":
-				String name1 = scanner.next();
-				String name2 = scanner.next();
+				String name1 = tokenizer.next();
+				String name2 = tokenizer.next();
 				System.out.print(Response.ADDFRIEND_SUCCESS.getResponse(name1, name2) + "\n> ");
 				break;
 			case "GAME_FINISHED":
 				System.out.println(Response.GAME_FINISHED.getResponse());
 				break;
 			case "GAME_RESULT":
-				int correct = scanner.nextInt();
-				int wrong = scanner.nextInt();
-				int points = scanner.nextInt();
+				int correct = tokenizer.nextInt();
+				int wrong = tokenizer.nextInt();
+				int points = tokenizer.nextInt();
 				System.out.print(Response.GAME_RESULT.getResponse(correct, wrong, points) + "\n> ");
 				break;
 			case "FRIENDLIST":
-				String friendlist = scanner.nextLine().substring(1).trim();
+				String friendlist = tokenizer.rest().trim();
 				Gson gson = new Gson();
 				JsonArray list = gson.fromJson(friendlist, JsonArray.class);
 				StringBuilder builder = new StringBuilder();
@@ -89,25 +90,39 @@ public class CLIReactor extends Reactor {
 				System.out.print(builder.toString() + "\n> ");
 				break;
 			case "LEADERBOARD":
-				String leaderboard = scanner.nextLine().substring(1).trim();
+				String leaderboard = tokenizer.rest().trim();
 				gson = new Gson();
 				JsonObject obj = gson.fromJson(leaderboard, JsonObject.class);
 				obj.keySet().forEach((String key) -> System.out.println(key + " " + obj.getAsJsonPrimitive(key).getAsString()));
 				System.out.print("> ");
 				break;
+			case "FRIENDLIST_PAGE":
+				printFriendList(PageCache.getCache().store("lista_amici_pagina", tokenizer.rest().trim()));
+				break;
+			case "LEADERBOARD_PAGE":
+				printLeaderboard(PageCache.getCache().store("mostra_classifica_pagina", tokenizer.rest().trim()));
+				break;
+			case "NOT_MODIFIED":
+				//The cached page is still up to date
+				String command = tokenizer.next();
+				JsonObject page = PageCache.getCache().lookup(command, tokenizer.nextInt());
+				if (page == null) System.out.print("> ");
+				else if (command.equals("lista_amici_pagina")) printFriendList(page);
+				else printLeaderboard(page);
+				break;
 			case "SCORE":
-				int score = scanner.nextInt();
+				int score = tokenizer.nextInt();
 				System.out.print(Response.SCORE.getResponse(score) + "\n> ");
 				break;
 			case "SEND_WORD":
-				int current = scanner.nextInt();
-				int maxWords = scanner.nextInt();
-				String word = scanner.next();
+				int current = tokenizer.nextInt();
+				int maxWords = tokenizer.nextInt();
+				String word = tokenizer.next();
 				System.out.print(Response.SEND_WORD.getResponse(current, maxWords, word) + "\n> ");
 				break;
 			case "WINNER":
-				int bonusPoints = scanner.nextInt();
-				int totalPoints = scanner.nextInt();
+				int bonusPoints = tokenizer.nextInt();
+				int totalPoints = tokenizer.nextInt();
 				System.out.print(Response.WINNER.getResponse(bonusPoints, totalPoints) + "\n> ");
 				break;
 			default:
@@ -115,7 +130,7 @@ public class CLIReactor extends Reactor {
 					Response response = Response.valueOf(code);
 					try {
 						//Handle responses with 1 arg only
-						System.out.print(response.getResponse(scanner.next()) + "\n> ");
+						System.out.print(response.getResponse(tokenizer.next()) + "\n> ");
 						break;
 					} catch (NoSuchElementException e) {}
 					//Handle the responses with no arguments
@@ -126,6 +141,22 @@ public class CLIReactor extends Reactor {
 				System.out.print(msg + "\n> ");
 				break;
 		}
-		scanner.close();
+	}
+
+	private static void printFriendList(JsonObject page) {
+		StringBuilder builder = new StringBuilder();
+		page.getAsJsonArray("friends").forEach((JsonElement elem) -> builder.append(elem.getAsString() + " "));
+		System.out.print(builder.toString() + "\n");
+		printPageNumber(page);
+	}
+
+	private static void printLeaderboard(JsonObject page) {
+		JsonObject ranking = page.getAsJsonObject("ranking");
+		ranking.keySet().forEach((String key) -> System.out.println(key + " " + ranking.getAsJsonPrimitive(key).getAsString()));
+		printPageNumber(page);
+	}
+
+	private static void printPageNumber(JsonObject page) {
+		System.out.print("Page " + PageCache.getPage(page) + " of " + PageCache.getPages(page) + "\n> ");
 	}
 }
\ No newline at end of file
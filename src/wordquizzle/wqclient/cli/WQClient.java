@@ -38,9 +38,9 @@ public class WQClient {
 		+ "    login <username> <password>: login utente\n"
 		+ "    aggingi_amico <username>: aggiungi un amico\n"
 		+ "    sfida <username>: sfida un amico\n"
-		+ "    lista_amici: stampa lista amici utente\n"
+		+ "    lista_amici [pagina]: stampa lista amici utente\n"
 		+ "    mostra_punteggio: mostra punteggio dell'utente\n"
-		+ "    mostra_classifica: mostra classifica amici dell'utente\n");
+		+ "    mostra_classifica [pagina]: mostra classifica amici dell'utente\n");
 	}
 
 	public static void main(final String[] args) {
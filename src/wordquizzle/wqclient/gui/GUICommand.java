@@ -5,6 +5,7 @@ import java.rmi.registry.Registry;
 
 import wordquizzle.WQRegisterInterface;
 import wordquizzle.WQRegisterInterface.*;
+import wordquizzle.wqclient.PageCache;
 
 public abstract class GUICommand {
 	public abstract void handle(String... args);
@@ -39,18 +40,23 @@ class LoginCommand extends GUICommand {
 	}	
 }
 
+/**
+ * The {@code FriendListCommand} class implements friendlist fetching, each request shows the next page.
+ */
 class FriendListCommand extends GUICommand {
 	public void handle(String... args) {
-		GUIReactor.getReactor().write("lista_amici");
+		PageCache cache = PageCache.getCache();
+		GUIReactor.getReactor().write(cache.request("lista_amici_pagina", cache.nextPage("lista_amici_pagina")));
 	}
 }
 
 /**
- * The {@code LeaderboardCommand} class implements leaderboard fetching
+ * The {@code LeaderboardCommand} class implements leaderboard fetching, each request shows the next page.
  */
 class LeaderboardCommand extends GUICommand {
 	public void handle(String... args) {
-		GUIReactor.getReactor().write("mostra_classifica");
+		PageCache cache = PageCache.getCache();
+		GUIReactor.getReactor().write(cache.request("mostra_classifica_pagina", cache.nextPage("mostra_classifica_pagina")));
 	}
 }
 
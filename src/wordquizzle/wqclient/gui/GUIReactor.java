@@ -2,7 +2,6 @@ package wordquizzle.wqclient.gui;
 
 import java.net.InetSocketAddress;
 import java.util.NoSuchElementException;
-import java.util.Scanner;
 
 import javax.swing.JFrame;
 
@@ -12,7 +11,9 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import wordquizzle.Response;
+import wordquizzle.Tokenizer;
 import wordquizzle.UserState;
+import wordquizzle.wqclient.PageCache;
 import wordquizzle.wqclient.Reactor;
 
 public class GUIReactor extends Reactor{
@@ -34,16 +35,16 @@ public class GUIReactor extends Reactor{
 	}
 
 	public void handleRead(String msg) {
-		Scanner scannerstub = new Scanner(msg);
-		Scanner scanner = scannerstub.useDelimiter(":");
-		String code = scanner.next();
+		Tokenizer tokenizer = new Tokenizer(msg);
+		String code = tokenizer.next();
 		switch (code) {
 			// SET_STATE handling
 			case "SET_STATE":
-				String newState = scanner.next();
+				String newState = tokenizer.next();
 				switch (newState) {
 					case "OFFLINE":
 						WQClient.state = UserState.OFFLINE;
+						PageCache.getCache().clear();
 						break;
 					case "IDLE":
 						WQClient.state = UserState.IDLE;
@@ -63,14 +64,14 @@ public class GUIReactor extends Reactor{
 				LoginFrame.showError(Response.LOGIN_FAILURE.getResponse());
 				break;
 			case "LOGIN_SUCCESS":
-				String name = scanner.next();
+				String name = tokenizer.next();
 				LoginFrame.showOk(Response.LOGIN_SUCCESS.getResponse(name));
 				LoginFrame.close();
 				WQClient.setActiveFrame(MainFrame.createFrame());
 				MainFrame.appendLine(Response.LOGIN_SUCCESS.getResponse(name));
 				break;
 			case "USERNOTEXISTS_FAILURE":
-				name = scanner.next();
+				name = tokenizer.next();
 				JFrame frame = WQClient.getActiveFrame();
 				if (frame == ChallengeFrame.frame) 
 					ChallengeFrame.showError(Response.USERNOTEXISTS_FAILURE.getResponse(name));
@@ -80,21 +81,21 @@ public class GUIReactor extends Reactor{
 					LoginFrame.showError(Response.USERNOTEXISTS_FAILURE.getResponse(name));
 				break;
 			case "ALREADYFRIENDS_FAILURE":
-				name = scanner.next();
+				name = tokenizer.next();
 				AddFriendFrame.showError(Response.ALREADYFRIENDS_FAILURE.getResponse(name));
 				break;
 			case "FRIENDSELF_FAILURE":
 				AddFriendFrame.showError(Response.FRIENDSELF_FAILURE.getResponse());
 				break;
 			case "ADDFRIEND_SUCCESS":
-				String user1 = scanner.next();
-				String user2 = scanner.next();
+				String user1 = tokenizer.next();
+				String user2 = tokenizer.next();
 				MainFrame.appendLine(Response.ADDFRIEND_SUCCESS.getResponse(user1, user2));
 				WQClient.setActiveFrame(MainFrame.frame);
 				AddFriendFrame.frame.dispose();
 				break;
 			case "FRIENDLIST":
-				String friendlist = scanner.nextLine().substring(1).trim();
+				String friendlist = tokenizer.rest().trim();
 				Gson gson = new Gson();
 				JsonArray list = gson.fromJson(friendlist, JsonArray.class);
 				StringBuilder builder = new StringBuilder();
@@ -102,17 +103,31 @@ public class GUIReactor extends Reactor{
 				MainFrame.appendLine(builder.toString());
 				break;
 			case "LEADERBOARD":
-				String leaderboard = scanner.nextLine().substring(1).trim();
+				String leaderboard = tokenizer.rest().trim();
 				gson = new Gson();
 				JsonObject obj = gson.fromJson(leaderboard, JsonObject.class);
 				obj.keySet().forEach((String key) -> MainFrame.appendLine(key + " " + obj.getAsJsonPrimitive(key).getAsString()));
 				break;
+			case "FRIENDLIST_PAGE":
+				showFriendList(PageCache.getCache().store("lista_amici_pagina", tokenizer.rest().trim()));
+				break;
+			case "LEADERBOARD_PAGE":
+				showLeaderboard(PageCache.getCache().store("mostra_classifica_pagina", tokenizer.rest().trim()));
+				break;
+			case "NOT_MODIFIED":
+				//The cached page is still up to date
+				String command = tokenizer.next();
+				JsonObject page = PageCache.getCache().lookup(command, tokenizer.nextInt());
+				if (page == null) break;
+				if (command.equals("lista_amici_pagina")) showFriendList(page);
+				else showLeaderboard(page);
+				break;
 			case "SCORE":
-				int score = scanner.nextInt();
+				int score = tokenizer.nextInt();
 				MainFrame.appendLine(Response.SCORE.getResponse(score));
 				break;
 			case "CHALLENGE_FROM":
-				name = scanner.next();
+				name = tokenizer.next();
 				if (AddFriendFrame.frame != null) AddFriendFrame.frame.dispose();
 				if (ChallengeFrame.frame != null) ChallengeFrame.frame.dispose();
 				WQClient.setActiveFrame(AcceptChallengeFrame.createFrame(Response.CHALLENGE_FROM.getResponse(name)));
@@ -129,16 +144,16 @@ public class GUIReactor extends Reactor{
 			case "GAME_RESULT":
 				if (GameFrame.frame != null) GameFrame.frame.dispose();
 				WQClient.setActiveFrame(MainFrame.frame);
-				MainFrame.appendLine(Response.GAME_RESULT.getResponse(scanner.nextInt(), scanner.nextInt(), scanner.nextInt()));
+				MainFrame.appendLine(Response.GAME_RESULT.getResponse(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt()));
 				break;
 			case "WINNER":
-				MainFrame.appendLine(Response.WINNER.getResponse(scanner.nextInt(), scanner.nextInt()));
+				MainFrame.appendLine(Response.WINNER.getResponse(tokenizer.nextInt(), tokenizer.nextInt()));
 				break;
 			case "SEND_WORD":
-				if (GameFrame.frame != null) GameFrame.wordArea.setText(Response.SEND_WORD.getResponse(scanner.nextInt(), scanner.nextInt(), scanner.next()));
+				if (GameFrame.frame != null) GameFrame.wordArea.setText(Response.SEND_WORD.getResponse(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.next()));
 				break;
 			case "QUIT_CHALLENGE":
-				name = scanner.next();
+				name = tokenizer.next();
 				if (WQClient.getActiveFrame() != AddFriendFrame.frame || WQClient.getActiveFrame() != MainFrame.frame)
 					WQClient.getActiveFrame().dispose();
 				WQClient.setActiveFrame(MainFrame.frame);
@@ -156,11 +171,11 @@ public class GUIReactor extends Reactor{
 				WQClient.setActiveFrame(MainFrame.frame);
 				break;
 			case "NOTFRIENDS_FAILURE":
-				name = scanner.next();
+				name = tokenizer.next();
 				ChallengeFrame.showError(Response.NOTFRIENDS_FAILURE.getResponse(name));
 				break;
 			case "CANTPLAY_FAILURE":
-				name = scanner.next();
+				name = tokenizer.next();
 				ChallengeFrame.showError(Response.CANTPLAY_FAILURE.getResponse(name));
 				break;
 			case "WAITING_RESPONSE":
@@ -171,7 +186,7 @@ public class GUIReactor extends Reactor{
 					Response response = Response.valueOf(code);
 					try {
 						//Handle responses with 1 arg only
-						MainFrame.appendLine(response.getResponse(scanner.next()));
+						MainFrame.appendLine(response.getResponse(tokenizer.next()));
 						break;
 					} catch (NoSuchElementException e) {}
 					//Handle the responses with no arguments
@@ -182,7 +197,23 @@ public class GUIReactor extends Reactor{
 				MainFrame.appendLine(msg);
 				break;
 		}
-		scanner.close();
+	}
+
+	private static void showFriendList(JsonObject page) {
+		StringBuilder builder = new StringBuilder();
+		page.getAsJsonArray("friends").forEach((JsonElement elem) -> builder.append(elem.getAsString() + " "));
+		MainFrame.appendLine(builder.toString());
+		showPageNumber(page);
+	}
+
+	private static void showLeaderboard(JsonObject page) {
+		JsonObject ranking = page.getAsJsonObject("ranking");
+		ranking.keySet().forEach((String key) -> MainFrame.appendLine(key + " " + ranking.getAsJsonPrimitive(key).getAsString()));
+		showPageNumber(page);
+	}
+
+	private static void showPageNumber(JsonObject page) {
+		MainFrame.appendLine("Page " + PageCache.getPage(page) + " of " + PageCache.getPages(page));
 	}
 
 }
\ No newline at end of file
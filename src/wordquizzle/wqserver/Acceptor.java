@@ -4,47 +4,101 @@ import wordquizzle.Logger;
 import java.nio.channels.*;
 import java.io.IOException;
 import java.net.*;
+import java.util.Arrays;
 
 /**
- * the {@code Acceptor} class implements the TCP connection acceptor as a Singleton.
+ * the {@code Acceptor} class implements the TCP connection acceptor.
+ * <p>
+ * {@link Config#ACCEPTORS} acceptors are started, each one handing the connections it accepts to its own group of
+ * reactors. Where the platform supports {@code SO_REUSEPORT} every acceptor binds its own listening socket and the
+ * kernel spreads the incoming connections among them, otherwise they all accept from the same socket.
  */
-public class Acceptor {
+public class Acceptor extends Thread {
 
-	private static Acceptor acceptor;
+	public static Acceptor[] acceptors = new Acceptor[0];
 	private ServerSocketChannel serverChannel;
 	private Selector selector;
+	private Reactor[] group;
 
-	private Acceptor() {}
-	
 	/**
-	 * Return the acceptor singleton
-	 * @return connection acceptor
+	 * Constructs an acceptor.
+	 * @param serverChannel the listening socket.
+	 * @param group         the reactors the accepted connections are handed to.
+	 * @throws IOException if the selector can't be opened.
 	 */
-	public synchronized static Acceptor getAcceptor() {
-		if (acceptor == null) acceptor = new Acceptor();
-		return acceptor;
+	private Acceptor(ServerSocketChannel serverChannel, Reactor[] group) throws IOException {
+		this.serverChannel = serverChannel;
+		this.group = group;
+		this.selector = Selector.open();
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 	}
 
 	/**
-	 * Start listening for TCP connections
+	 * Returns the {@code SO_REUSEPORT} socket option, which only exists from Java 9 onwards.
+	 * @return the option or {@code null} if it doesn't exist.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePort() {
+		try {
+			return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Opens a non blocking listening socket.
+	 * @param port      the port to bind to.
+	 * @param reusePort the {@code SO_REUSEPORT} option to enable, or {@code null}.
+	 * @return the listening socket.
+	 * @throws IOException if the socket can't be bound.
+	 */
+	private static ServerSocketChannel listen(int port, SocketOption<Boolean> reusePort) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		if (reusePort != null) channel.setOption(reusePort, true);
+		channel.bind(new InetSocketAddress(port), Config.ACCEPT_BACKLOG);
+		channel.configureBlocking(false);
+		return channel;
+	}
+
+	/**
+	 * Start listening for TCP connections, splitting the reactors among {@link Config#ACCEPTORS} acceptors.
 	 * @param port the port to bind to
 	 */
-	public void start(final int port) {
-		
-		//Open the listening socket
+	public static void start(final int port) {
+		Reactor[] reactors = Reactor.reactors;
+		int count = Math.max(1, Math.min(Config.ACCEPTORS, reactors.length));
+
+		//Open the listening sockets
 		try {
-			serverChannel = ServerSocketChannel.open();
-			final ServerSocket ss = serverChannel.socket();
-			ss.bind(new InetSocketAddress(port));
-			serverChannel.configureBlocking(false);
-			selector = Selector.open();
-			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			SocketOption<Boolean> reusePort = null;
+			if (count > 1) {
+				reusePort = getReusePort();
+				ServerSocketChannel probe = ServerSocketChannel.open();
+				if (reusePort != null && !probe.supportedOptions().contains(reusePort)) reusePort = null;
+				probe.close();
+				if (reusePort == null) Logger.logWarn("SO_REUSEPORT is not supported, the acceptors will share a socket");
+			}
+
+			ServerSocketChannel shared = listen(port, reusePort);
+			acceptors = new Acceptor[count];
+			for (int i = 0; i < count; i++) {
+				ServerSocketChannel channel = i == 0 || reusePort == null ? shared : listen(port, reusePort);
+				Reactor[] group = Arrays.copyOfRange(reactors, i * reactors.length / count,
+				                                     (i + 1) * reactors.length / count);
+				acceptors[i] = new Acceptor(channel, group);
+			}
 		} catch (final IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 			return;
 		};
 
+		for (Acceptor acceptor : acceptors) acceptor.start();
+	}
+
+	@Override
+	public void run() {
 		//Wait for incoming connections
 		while (!Thread.interrupted()) {
 			try {
@@ -52,18 +106,24 @@ public class Acceptor {
 				for (SelectionKey key : selector.selectedKeys()) {
 					if (key.isAcceptable()) {
 						final ServerSocketChannel server = (ServerSocketChannel) key.channel();
-						final SocketChannel client = server.accept();
-						client.configureBlocking(false);
-						Logger.logInfo("Accepted connection from ", client.getRemoteAddress());
-						Reactor.getReactor().registerChannel(client);
+						//Accept every pending connection, not just one per wakeup
+						SocketChannel client;
+						while ((client = server.accept()) != null) {
+							client.configureBlocking(false);
+							Logger.logInfo("Accepted connection from ", client.getRemoteAddress());
+							Reactor.getReactor(group).registerChannel(client);
+						}
 					}
 				}
 				selector.selectedKeys().clear();
+			} catch (final ClosedSelectorException | ClosedChannelException e) {
+				//The acceptor has been closed
+				return;
 			} catch (final IOException e) {
 				e.printStackTrace();
 				System.exit(1);
 				return;
-			} catch (final ClosedSelectorException e) {/* discard */}
+			}
 		}
 	}
 
@@ -76,4 +136,11 @@ public class Acceptor {
 			selector.close();
 		} catch (final IOException e) {e.printStackTrace();}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Closes every acceptor.
+	 */
+	public static void closeAll() {
+		for (Acceptor acceptor : acceptors) acceptor.close();
+	}
+}
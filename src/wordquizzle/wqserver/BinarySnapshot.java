@@ -0,0 +1,204 @@
+package wordquizzle.wqserver;
+
+import wordquizzle.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * The {@code BinarySnapshot} class reads and writes the compact binary snapshot of the database.
+ * <p>
+ * The file is laid out as follows (all integers are big endian):
+ * <pre>
+ * header  magic, version, number of users, number of edges, offset of the names, offset of the edges
+ * users   one fixed width record per user: name offset, SHA-256 password hash, score, first edge, number of edges
+ * names   the users' nicknames as length-prefixed UTF-8 strings
+ * edges   the friend lists as user ids, i.e. indexes of the user records
+ * </pre>
+ * Every nickname is stored exactly once, friendships refer to users by id, and the file is read through a
+ * {@code MappedByteBuffer} so loading it doesn't need any intermediate copy of its content.
+ */
+public class BinarySnapshot {
+
+	private static final int MAGIC = 0x57514442; //"WQDB"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int HASH_SIZE = 32;
+	private static final int RECORD_SIZE = 4 + HASH_SIZE + 4 + 4 + 4;
+
+	private BinarySnapshot() {}
+
+	/**
+	 * Writes the snapshot of {@code users} to {@code file} and syncs it to disk.
+	 * Friends which are not part of {@code users} are left out.
+	 * @param file  the snapshot file.
+	 * @param users the users.
+	 * @param stats where to account for the time spent syncing.
+	 * @throws IOException if the file can't be written or a user's password hash is malformed.
+	 */
+	public static void write(Path file, Collection<User> users, CommitStats stats) throws IOException {
+		//Assign the ids, mapping the ids of the friend graph to the ones of the snapshot
+		FriendGraph graph = FriendGraph.getGraph();
+		List<User> list = new ArrayList<>(users);
+		int[] ids = new int[graph.size()];
+		Arrays.fill(ids, -1);
+		byte[][] names = new byte[list.size()][];
+		for (int i = 0; i < list.size(); i++) {
+			ids[list.get(i).getId()] = i;
+			names[i] = list.get(i).getName().getBytes(StandardCharsets.UTF_8);
+		}
+
+		//Translate the friend lists into ids
+		int[][] edges = new int[list.size()][];
+		long numEdges = 0;
+		for (int i = 0; i < list.size(); i++) {
+			int[] friends = graph.getFriends(list.get(i).getId());
+			int[] friendIds = new int[friends.length];
+			int n = 0;
+			for (int friend : friends) {
+				if (friend < ids.length && ids[friend] >= 0) friendIds[n++] = ids[friend];
+			}
+			edges[i] = n == friendIds.length ? friendIds : Arrays.copyOf(friendIds, n);
+			numEdges += n;
+		}
+
+		long namesOffset = HEADER_SIZE + (long)RECORD_SIZE * list.size();
+		long namesSize = 0;
+		for (byte[] name : names) namesSize += 2 + name.length;
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		                                            StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+			                                                                     1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(list.size());
+			out.writeInt((int)numEdges);
+			out.writeLong(namesOffset);
+			out.writeLong(namesOffset + namesSize);
+
+			int nameOffset = 0;
+			int firstEdge = 0;
+			for (int i = 0; i < list.size(); i++) {
+				User user = list.get(i);
+				out.writeInt(nameOffset);
+				out.write(hexToBytes(user.getName(), user.getPassword()));
+				out.writeInt(user.getScore());
+				out.writeInt(firstEdge);
+				out.writeInt(edges[i].length);
+				nameOffset += 2 + names[i].length;
+				firstEdge += edges[i].length;
+			}
+			for (byte[] name : names) {
+				out.writeShort(name.length);
+				out.write(name);
+			}
+			for (int[] friendIds : edges)
+				for (int id : friendIds) out.writeInt(id);
+			out.flush();
+			long start = System.nanoTime();
+			channel.force(true);
+			stats.sync(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Reads the snapshot stored in {@code file}.
+	 * The users' friend lists are added to the {@link FriendGraph}.
+	 * @param file the snapshot file.
+	 * @return the users.
+	 * @throws IOException if the file can't be read or isn't a valid snapshot.
+	 */
+	public static User[] read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+				throw new IOException(file + " is not a valid database snapshot");
+			int numUsers = map.getInt(8);
+			int namesOffset = (int)map.getLong(16);
+			int edgesOffset = (int)map.getLong(24);
+
+			User[] users = new User[numUsers];
+			byte[] hash = new byte[HASH_SIZE];
+			byte[] name = new byte[64];
+			for (int i = 0; i < numUsers; i++) {
+				int record = HEADER_SIZE + i * RECORD_SIZE;
+				int nameOffset = namesOffset + map.getInt(record);
+				int length = map.getShort(nameOffset) & 0xFFFF;
+				if (length > name.length) name = new byte[length];
+				map.position(nameOffset + 2);
+				map.get(name, 0, length);
+				map.position(record + 4);
+				map.get(hash);
+				users[i] = new User(new String(name, 0, length, StandardCharsets.UTF_8), User.bytesToHex(hash),
+				                    map.getInt(record + 4 + HASH_SIZE));
+			}
+			//Every friend list is independent from the others so they're filled in parallel,
+			//absolute reads from the mapped buffer are safe to share between threads.
+			FriendGraph graph = FriendGraph.getGraph();
+			IntStream.range(0, numUsers).parallel().forEach((int i) -> {
+				int record = HEADER_SIZE + i * RECORD_SIZE;
+				int firstEdge = map.getInt(record + 8 + HASH_SIZE);
+				int[] friends = new int[map.getInt(record + 12 + HASH_SIZE)];
+				for (int j = 0; j < friends.length; j++)
+					friends[j] = users[map.getInt(edgesOffset + (firstEdge + j) * 4)].getId();
+				graph.addFriends(users[i].getId(), friends);
+			});
+			return users;
+		}
+	}
+
+	/**
+	 * Decodes the password hash of the user named {@code name}.
+	 * @throws IOException if the hash isn't made of exactly {@code 2 * HASH_SIZE} hex digits.
+	 */
+	private static byte[] hexToBytes(String name, String hex) throws IOException {
+		if (hex == null || hex.length() != 2 * HASH_SIZE)
+			throw new IOException("Invalid password hash for user " + name + ": expected " + 2 * HASH_SIZE +
+			                      " hex digits");
+		byte[] bytes = new byte[HASH_SIZE];
+		for (int i = 0; i < HASH_SIZE; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				throw new IOException("Invalid password hash for user " + name + ": not a hex string");
+			bytes[i] = (byte)(high << 4 | low);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Converts a JSON database into a binary snapshot.
+	 * usage: wordquizzle.wqserver.BinarySnapshot [database.json] [database.db]
+	 * @param args the source JSON file and the destination snapshot file.
+	 */
+	public static void main(String[] args) {
+		Path source = Paths.get(args.length > 0 ? args[0] : "./database.json");
+		Path destination = Paths.get(args.length > 1 ? args[1] : "./database.db");
+		try {
+			long start = System.currentTimeMillis();
+			ConcurrentHashMap<String, User> map = new ConcurrentHashMap<>();
+			MemoryStorageEngine.readJson(source, map);
+			write(destination, map.values(), new CommitStats());
+			Logger.logInfo("Converted ", map.size(), " users from ", source, " to ", destination, " in ",
+			               System.currentTimeMillis() - start, "ms");
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
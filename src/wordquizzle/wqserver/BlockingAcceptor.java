@@ -0,0 +1,96 @@
+package wordquizzle.wqserver;
+
+import wordquizzle.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The {@code BlockingAcceptor} class implements the TCP connection acceptor of the {@code "threads"} transport
+ * (see {@link Config#TRANSPORT}) as a Singleton.
+ * <p>
+ * Every connection is handled by a {@link BlockingEventHandler} on threads of its own, one reading and one writing:
+ * virtual threads when the JVM supports them (Java 21 onwards), platform threads otherwise.
+ */
+public class BlockingAcceptor extends Thread {
+
+	private static BlockingAcceptor acceptor;
+	private ServerSocket serverSocket;
+	private ThreadFactory threads;
+
+	private BlockingAcceptor(ServerSocket serverSocket, ThreadFactory threads) {
+		super("BlockingAcceptor");
+		this.serverSocket = serverSocket;
+		this.threads = threads;
+	}
+
+	/**
+	 * Returns a factory of virtual threads, looked up by reflection since the project targets Java 8.
+	 * @return the thread factory or {@code null} if the JVM doesn't support virtual threads.
+	 */
+	private static ThreadFactory getVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Start listening for TCP connections
+	 * @param port the port to bind to
+	 */
+	public synchronized static void start(final int port) {
+		ThreadFactory threads = getVirtualThreadFactory();
+		if (threads != null) Logger.logInfo("Handling every connection on a virtual thread");
+		else {
+			Logger.logWarn("Virtual threads are not supported, handling every connection on a platform thread");
+			threads = Thread::new;
+		}
+
+		try {
+			ServerSocket serverSocket = new ServerSocket();
+			serverSocket.bind(new InetSocketAddress(port), Config.ACCEPT_BACKLOG);
+			acceptor = new BlockingAcceptor(serverSocket, threads);
+		} catch (final IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+			return;
+		}
+		acceptor.start();
+	}
+
+	@Override
+	public void run() {
+		//Wait for incoming connections
+		while (!Thread.interrupted()) {
+			try {
+				Socket client = serverSocket.accept();
+				client.setTcpNoDelay(true);
+				Logger.logInfo("Accepted connection from ", client.getRemoteSocketAddress());
+				threads.newThread(new BlockingEventHandler(client, threads)).start();
+			} catch (final SocketException e) {
+				//The acceptor has been closed
+				if (serverSocket.isClosed()) return;
+				e.printStackTrace();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Closes the acceptor if it has been started.
+	 */
+	public synchronized static void close() {
+		if (acceptor == null) return;
+		try {
+			acceptor.serverSocket.close();
+		} catch (final IOException e) {e.printStackTrace();}
+	}
+}
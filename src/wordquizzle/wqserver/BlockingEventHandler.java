@@ -0,0 +1,301 @@
+package wordquizzle.wqserver;
+
+import wordquizzle.Logger;
+import wordquizzle.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The {@code BlockingEventHandler} class handles a connection with blocking reads and writes on a thread of its own,
+ * it's the {@link EventHandler} used by the {@code "threads"} transport (see {@link Config#TRANSPORT}).
+ * <p>
+ * Messages are split and dispatched exactly like the reactor does. Outgoing messages are queued and written to the
+ * socket by a second thread of the connection's own, so that the threads sending them never block on a client which
+ * doesn't read: like with the reactor, a client which lets more than {@link Config#OUTBOUND_MAX} bytes pile up, or
+ * stays above {@link Config#OUTBOUND_HIGH} queued bytes for {@link Config#SLOW_CONSUMER_TIMEOUT} milliseconds, is
+ * disconnected.
+ */
+public class BlockingEventHandler extends EventHandler implements Runnable {
+	//Capacity the queue's buffers start from and go back to after a large write
+	private static final int INITIAL_CAPACITY = 256;
+
+	private Socket socket;
+	private OutputStream out;
+	private ThreadFactory threads;
+	//Set once writing fails or the connection is closed
+	private boolean closed = false;
+	private boolean released = false;
+	//The queued messages, guarded by this, and the ones the writer thread is writing, used by that thread only
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_CAPACITY);
+	private ByteBuffer sending = ByteBuffer.allocate(INITIAL_CAPACITY);
+	//Position of the pending buffer before it was reserved for appending, see reserve
+	private int pendingPosition = 0;
+	//Bytes queued or being written, and when they went above the high water mark (0 if they're below)
+	private long queued = 0;
+	private long highSince = 0;
+
+	/**
+	 * Constructs the event handler.
+	 * @param socket  the connection's socket.
+	 * @param threads the factory of the connection's writer thread.
+	 * @throws IOException if the socket's streams can't be opened.
+	 */
+	public BlockingEventHandler(Socket socket, ThreadFactory threads) throws IOException {
+		this.socket = socket;
+		this.out = socket.getOutputStream();
+		this.threads = threads;
+	}
+
+	/**
+	 * Messages are appended to the handler's queue, then handed to the writer thread by {@link #commit}.
+	 * @param length the number of bytes about to be written.
+	 * @return the buffer or {@code null} if the connection is closed or has just been found to be a slow consumer.
+	 */
+	@Override
+	ByteBuffer reserve(int length) {
+		if (!admit(length)) return null;
+		ensurePending(length);
+		pendingPosition = pending.position();
+		return pending;
+	}
+
+	@Override
+	void commit(ByteBuffer tail) {
+		queued(tail.position() - pendingPosition);
+	}
+
+	/**
+	 * The chunks are copied to the handler's queue and given back to the pool right away.
+	 * @param chunks the chunks, taken from the {@link BufferPool} and in write mode.
+	 */
+	@Override
+	synchronized void enqueue(List<ByteBuffer> chunks) {
+		long length = 0;
+		for (ByteBuffer chunk : chunks) length += chunk.position();
+		if (admit(length)) {
+			ensurePending((int)length);
+			for (ByteBuffer chunk : chunks) {
+				chunk.flip();
+				pending.put(chunk);
+			}
+			queued(length);
+		}
+		for (ByteBuffer chunk : chunks) BufferPool.getPool().release(chunk);
+	}
+
+	/**
+	 * Returns {@code true} iff {@code length} more bytes can be queued, closing the connection if it's been found
+	 * to be a slow consumer. The caller must hold the lock.
+	 */
+	private boolean admit(long length) {
+		if (closed) return false;
+		if (!slowConsumer(length)) return true;
+		Logger.logWarn(socket.getRemoteSocketAddress(), " is not reading its messages, disconnecting it");
+		closed = true;
+		notifyAll();
+		try {socket.close();} catch (IOException e) {/*discard*/}
+		return false;
+	}
+
+	/**
+	 * Makes sure the queue has room for {@code length} more bytes, the caller must hold the lock.
+	 */
+	private void ensurePending(int length) {
+		if (pending.remaining() >= length) return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.position() + length, 2 * pending.capacity()));
+		pending.flip();
+		bigger.put(pending);
+		pending = bigger;
+	}
+
+	/**
+	 * Accounts for {@code length} bytes which have just been queued and wakes up the writer thread, the caller must
+	 * hold the lock.
+	 */
+	private void queued(long length) {
+		queued += length;
+		if (queued > Config.OUTBOUND_HIGH && highSince == 0) highSince = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	/**
+	 * Returns {@code true} iff queueing {@code length} more bytes would exceed {@link Config#OUTBOUND_MAX} or the
+	 * queue has been above the high water mark for longer than {@link Config#SLOW_CONSUMER_TIMEOUT}, the caller must
+	 * hold the lock.
+	 */
+	private boolean slowConsumer(long length) {
+		if (queued + length > Config.OUTBOUND_MAX) return true;
+		return highSince != 0 && System.currentTimeMillis() - highSince > Config.SLOW_CONSUMER_TIMEOUT;
+	}
+
+	/**
+	 * Returns {@code true} iff the queue has been above the high water mark for longer than
+	 * {@link Config#SLOW_CONSUMER_TIMEOUT}, checked by the reading thread whenever it wakes up.
+	 * @return {@code true} iff the client should be disconnected.
+	 */
+	@Override
+	synchronized boolean isSlowConsumer() {
+		if (closed || !slowConsumer(0)) return false;
+		Logger.logWarn(socket.getRemoteSocketAddress(), " is not reading its messages, disconnecting it");
+		return true;
+	}
+
+	/**
+	 * Writes the queued messages to the socket until the connection is closed, run by the writer thread.
+	 */
+	private void drain() {
+		try {
+			while (true) {
+				synchronized(this) {
+					while (pending.position() == 0 && !closed) wait();
+					if (closed) return;
+					//Take the whole queue, the senders go on appending to the other buffer meanwhile
+					ByteBuffer full = pending;
+					pending = sending;
+					sending = full;
+				}
+				out.write(sending.array(), 0, sending.position());
+				synchronized(this) {
+					queued -= sending.position();
+					if (queued <= Config.OUTBOUND_HIGH) highSince = 0;
+				}
+				if (sending.capacity() > INITIAL_CAPACITY * 16) sending = ByteBuffer.allocate(INITIAL_CAPACITY);
+				else sending.clear();
+			}
+		} catch (IOException e) {
+			//The reading thread will notice the connection is gone
+			synchronized(this) {
+				closed = true;
+			}
+			try {socket.close();} catch (IOException e1) {/*discard*/}
+		} catch (InterruptedException e) {/*discard*/}
+	}
+
+	/**
+	 * The handler's thread is the connection's own, so the task is run right away.
+	 * @param task the task to run.
+	 */
+	@Override
+	public void runBlocking(Runnable task) {
+		task.run();
+	}
+
+	/**
+	 * The handler's thread is the connection's own, so the message is handled right away.
+	 * @param frame the message, without the delimiter.
+	 */
+	@Override
+	protected void dispatch(String frame) {
+		if (!heartbeat(frame)) compute(frame);
+	}
+
+	@Override
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress)socket.getLocalSocketAddress();
+	}
+
+	@Override
+	public void close() {
+		synchronized(this) {
+			if (released) return;
+			released = true;
+			closed = true;
+			notifyAll();
+		}
+
+		//If the user was logged in log him out
+		if (getUser() != null) {
+			getUser().logoutNoNotify();
+			Logger.logInfo("User ", getUser().getName(), " disconnected");
+		}
+		try {socket.close();} catch (IOException e) {/*discard*/}
+	}
+
+	@Override
+	public void run() {
+		threads.newThread(this::drain).start();
+		byte[] buffer = new byte[Config.MAX_FRAME_SIZE];
+		//Bytes of the partial frame at the beginning of the buffer
+		int length = 0;
+		//True while dropping the rest of an oversized frame
+		boolean discarding = false;
+		//When the client last sent something and whether it's been pinged since
+		long lastActivity = System.currentTimeMillis();
+		boolean pinged = false;
+		try {
+			//Wake up periodically to ping the client or give up on it
+			long timeout = Long.MAX_VALUE;
+			if (Config.PING_INTERVAL > 0) timeout = Config.PING_INTERVAL;
+			if (Config.IDLE_TIMEOUT > 0) timeout = Math.min(timeout, Config.IDLE_TIMEOUT);
+			if (timeout != Long.MAX_VALUE) socket.setSoTimeout((int)Math.min(timeout, Integer.MAX_VALUE));
+			InputStream in = socket.getInputStream();
+			while (true) {
+				int read;
+				try {
+					read = in.read(buffer, length, buffer.length - length);
+				} catch (SocketTimeoutException e) {
+					if (isSlowConsumer()) break;
+					long idle = System.currentTimeMillis() - lastActivity;
+					if (Config.IDLE_TIMEOUT > 0 && idle >= Config.IDLE_TIMEOUT) {
+						Logger.logInfo(socket.getRemoteSocketAddress(), " idle for ", idle, "ms, disconnecting it");
+						break;
+					}
+					if (Config.PING_INTERVAL > 0 && !pinged) {
+						pinged = true;
+						write(Response.PING);
+					}
+					continue;
+				}
+				if (read < 0) {
+					Logger.logInfo(socket.getRemoteSocketAddress(), " connection shutdown");
+					break;
+				}
+				lastActivity = System.currentTimeMillis();
+				pinged = false;
+
+				//Scan only the bytes which have just been read
+				int end = length + read;
+				int frameStart = 0;
+				for (int i = length; i < end; i++) {
+					if (buffer[i] != (byte)0x0A) continue;
+					if (discarding) discarding = false;
+					else if (i > frameStart) dispatch(new String(buffer, frameStart, i - frameStart, StandardCharsets.UTF_8));
+					frameStart = i + 1;
+				}
+
+				//Move the partial frame (if any) to the beginning of the buffer
+				length = end - frameStart;
+				System.arraycopy(buffer, frameStart, buffer, 0, length);
+
+				//The buffer is full and there's no newline: the frame is too long
+				if (length == buffer.length) {
+					if (!discarding) {
+						Logger.logWarn(socket.getRemoteSocketAddress(), " sent a message longer than ",
+						               Config.MAX_FRAME_SIZE, " bytes, discarding it");
+						write(Response.INVALID_COMMAND);
+					}
+					discarding = true;
+					length = 0;
+				}
+			}
+		} catch (IOException e) {/*the connection is gone*/}
+		finally {
+			//Even if handling a message failed, so that the user is logged out and the writer thread stops
+			close();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package wordquizzle.wqserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * The {@code BufferPool} class implements a pool of {@code ByteBuffer}s shared by every connection as a Singleton.
+ * <p>
+ * Buffers come in size classes, powers of two from {@link #MIN_SIZE} to {@link #MAX_SIZE} bytes, and each class
+ * keeps up to {@link Config#POOL_BUFFERS} free buffers; buffers which don't fit in their class' free list are left
+ * to the garbage collector. Buffers bigger than the biggest class are never pooled, so they're always allocated on
+ * the heap where the garbage collector can reclaim them promptly. Connections borrow their buffers only
+ * while data is in flight so an idle connection holds no buffer at all.
+ */
+public class BufferPool {
+
+	/**
+	 * Capacity of the smallest size class.
+	 */
+	public static final int MIN_SIZE = 512;
+
+	/**
+	 * Capacity of the biggest size class.
+	 */
+	public static final int MAX_SIZE = 64 * 1024;
+
+	private static final BufferPool pool = new BufferPool(Config.POOL_DIRECT, Config.POOL_BUFFERS);
+
+	private final boolean direct;
+	private final List<ArrayBlockingQueue<ByteBuffer>> classes = new ArrayList<>();
+
+	private BufferPool(boolean direct, int buffers) {
+		this.direct = direct;
+		for (int i = 0; i <= sizeClass(MAX_SIZE); i++) classes.add(new ArrayBlockingQueue<>(buffers));
+	}
+
+	/**
+	 * Return the buffer pool singleton
+	 * @return buffer pool singleton
+	 */
+	public static BufferPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Returns the index of the smallest size class whose buffers can hold {@code size} bytes.
+	 * @param size the number of bytes.
+	 * @return the size class.
+	 */
+	private static int sizeClass(int size) {
+		if (size <= MIN_SIZE) return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Borrows a cleared buffer which can hold at least {@code size} bytes.
+	 * @param size the minimum capacity.
+	 * @return the buffer.
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size > MAX_SIZE) return ByteBuffer.allocate(size);
+		int sizeClass = sizeClass(size);
+		ByteBuffer buffer = classes.get(sizeClass).poll();
+		return buffer != null ? buffer : allocate(MIN_SIZE << sizeClass);
+	}
+
+	/**
+	 * Returns a buffer to the pool, the buffer must not be used afterwards.
+	 * @param buffer the buffer to return, may be {@code null}.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.isDirect() != direct || buffer.capacity() > MAX_SIZE) return;
+		int sizeClass = sizeClass(buffer.capacity());
+		//Buffers which are not exactly of a size class can't come from the pool
+		if (buffer.capacity() != MIN_SIZE << sizeClass) return;
+		buffer.clear();
+		classes.get(sizeClass).offer(buffer);
+	}
+
+	/**
+	 * Replaces {@code buffer} with one which can hold at least {@code size} bytes, copying its content
+	 * (everything before its position) and releasing it.
+	 * @param buffer the buffer to grow, in write mode.
+	 * @param size   the minimum capacity.
+	 * @return the new buffer, in write mode.
+	 */
+	public ByteBuffer grow(ByteBuffer buffer, int size) {
+		if (buffer.capacity() >= size) return buffer;
+		ByteBuffer bigger = acquire(size);
+		buffer.flip();
+		bigger.put(buffer);
+		release(buffer);
+		return bigger;
+	}
+}
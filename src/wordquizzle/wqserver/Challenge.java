@@ -11,9 +11,12 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 
@@ -76,15 +79,13 @@ public class Challenge implements Runnable {
 	private static List<String> words;
 
 	class GameData {
-		public int startingScore;
+		//Points gained (or lost) so far, they're committed to the user's score when the game ends.
+		//Updated and committed while holding the challenge's lock, so no answer can land after the commit
+		public int delta = 0;
 		public int correctAnswers = 0;
 		public int wrongAnswers = 0;
 		public int numWords = 0;
 		public String currentWord = null;
-
-		public GameData(User user) {
-			startingScore = user.getScore();
-		}
 	}
 
 	/**
@@ -100,13 +101,14 @@ public class Challenge implements Runnable {
 
 	private User player1;
 	private User player2;
-	private HashMap<User, GameData> gameDataMap = new HashMap<>();
+	private ConcurrentHashMap<User, GameData> gameDataMap = new ConcurrentHashMap<>();
 	private HashMap<String, ArrayList<String>> wordsMap = new HashMap<>();
 	private ArrayList<String> wordsList = new ArrayList<>(numWords);
 	private Gson gson = new Gson();
 	private Timer acceptanceTimer;
 	private Timer gameTimer;
 	public boolean gameStarted = false;
+	private AtomicBoolean scoresCommitted = new AtomicBoolean(false);
 
 	public Challenge(User player1, User player2) {
 		this.player1 = player1;
@@ -175,50 +177,100 @@ public class Challenge implements Runnable {
 		try {
 			gameDataMap.get(player1).currentWord = wordsList.get(0);
 			gameDataMap.get(player2).currentWord = wordsList.get(0);
-			player1.getHandler().write(Response.SEND_WORD.getCode(1, numWords, gameDataMap.get(player1).currentWord));
-			player2.getHandler().write(Response.SEND_WORD.getCode(1, numWords, gameDataMap.get(player2).currentWord));
+			player1.getHandler().write(Response.SEND_WORD, 1, numWords, gameDataMap.get(player1).currentWord);
+			player2.getHandler().write(Response.SEND_WORD, 1, numWords, gameDataMap.get(player2).currentWord);
 		} catch (NoHandlerAssignedException e) {}
 	}
 
 	private void initGame() {
 		//Initialize the gameData structure for each player and start picking the words to be translated
 		try {
-			gameDataMap.put(player1, new GameData(player1));
-			gameDataMap.put(player2, new GameData(player2));
+			gameDataMap.put(player1, new GameData());
+			gameDataMap.put(player2, new GameData());
 
-			player1.getHandler().write(Response.BEGIN_CHALLENGE.getCode());
-			player2.getHandler().write(Response.BEGIN_CHALLENGE.getCode());
+			player1.getHandler().write(Response.BEGIN_CHALLENGE);
+			player2.getHandler().write(Response.BEGIN_CHALLENGE);
 			acceptanceTimer.cancel();
 			buildChallenge();
 		} catch (NoHandlerAssignedException e) {/*silently fail*/}
 	}
 
+	/**
+	 * Ends the game, sending the results to the players and committing their scores.
+	 */
 	public void finishGame() {
+		if (endGame()) releasePlayers();
+	}
+
+	/**
+	 * Sends the results to the players and commits their scores, unless it's already been done.
+	 * @return {@code true} iff the game has been ended by this call.
+	 */
+	private synchronized boolean endGame() {
+		//The game can end both because the last word has been received and because the timer ran out
+		if (!scoresCommitted.compareAndSet(false, true)) return false;
 		GameData player1GameData = gameDataMap.get(player1); 
 		GameData player2GameData = gameDataMap.get(player2);
+		int player1Delta = player1GameData.delta;
+		int player2Delta = player2GameData.delta;
 		try {
 			//Send the results to the players
-			player1.getHandler().write(Response.GAME_RESULT
-			       .getCode(player1GameData.correctAnswers, player1GameData.wrongAnswers,
-			       player1.getScore() - player1GameData.startingScore));
-			player2.getHandler().write(Response.GAME_RESULT
-			       .getCode(player2GameData.correctAnswers, player2GameData.wrongAnswers,
-			       player2.getScore() - player2GameData.startingScore));
+			player1.getHandler().write(Response.GAME_RESULT, player1GameData.correctAnswers,
+			                             player1GameData.wrongAnswers, player1Delta);
+			player2.getHandler().write(Response.GAME_RESULT, player2GameData.correctAnswers,
+			                             player2GameData.wrongAnswers, player2Delta);
 			
 			//Pick the winner (if any) and award him the extra points
-			if (player1.getScore() - player1GameData.startingScore > player2.getScore() - player2GameData.startingScore) {
-				player1.incrScore(winnerPoints);
-				player1.getHandler().write(Response.WINNER.getCode(3, player1.getScore() - player1GameData.startingScore));
+			if (player1Delta > player2Delta) {
+				player1Delta += winnerPoints;
+				player1.getHandler().write(Response.WINNER, winnerPoints, player1Delta);
 			} else 
-			if (player2.getScore() - player2GameData.startingScore > player1.getScore() - player1GameData.startingScore) {
-				player2.incrScore(winnerPoints);
-				player2.getHandler().write(Response.WINNER.getCode(3, player2.getScore() - player2GameData.startingScore));
+			if (player2Delta > player1Delta) {
+				player2Delta += winnerPoints;
+				player2.getHandler().write(Response.WINNER, winnerPoints, player2Delta);
 			}
 		} catch (NoHandlerAssignedException e) {}
+		commitScores(player1Delta, player2Delta);
+		return true;
+	}
+
+	/**
+	 * Sets both players' state to IDLE and unassigns them from the challenge. It's called after leaving the
+	 * challenge's lock, so that no thread ever waits for a player's state while holding it.
+	 */
+	private void releasePlayers() {
+		releasePlayer(player1);
+		releasePlayer(player2);
+	}
 
-		//Set both players state to IDLE
-		player1.setState(UserState.IDLE);
-		player2.setState(UserState.IDLE);
+	private void releasePlayer(User player) {
+		//The player may have moved on to another challenge meanwhile
+		if (player.getChallenge() != this) return;
+		player.setState(UserState.IDLE);
+		player.setChallenge(null);
+	}
+
+	/**
+	 * Commits the points the players gained (or lost) during the game to their scores with a single write.
+	 * @param player1Delta player1's points.
+	 * @param player2Delta player2's points.
+	 */
+	private void commitScores(int player1Delta, int player2Delta) {
+		Map<User, Integer> deltas = new HashMap<>();
+		if (player1Delta != 0) deltas.put(player1, player1Delta);
+		if (player2Delta != 0) deltas.put(player2, player2Delta);
+		if (!deltas.isEmpty()) User.addScores(deltas);
+	}
+
+	/**
+	 * Commits the points gained so far if the game has been aborted while being played.
+	 */
+	private void commitAbortedGame() {
+		if (!scoresCommitted.compareAndSet(false, true)) return;
+		GameData player1GameData = gameDataMap.get(player1);
+		GameData player2GameData = gameDataMap.get(player2);
+		if (player1GameData != null && player2GameData != null)
+			commitScores(player1GameData.delta, player2GameData.delta);
 	}
 
 	private void startChallenge() {
@@ -233,85 +285,100 @@ public class Challenge implements Runnable {
 	 * @param translatedWord The translation the user sent.
 	 */
 	public void receiveWord(User user, String translatedWord) {
+		if (answer(user, translatedWord)) releasePlayers();
+	}
+
+	/**
+	 * Scores the received translated word and sends the player the next one.
+	 * @return {@code true} iff the answer ended the game.
+	 */
+	private synchronized boolean answer(User user, String translatedWord) {
 		try {
 			GameData userGameData = gameDataMap.get(user);
 			
 			//We didn't finish loading the words yet so don't do anything
-			if (userGameData.currentWord == null) return;
+			if (userGameData.currentWord == null) return false;
+
+			//The game is over and its scores are committed, late answers don't count
+			if (scoresCommitted.get()) return false;
 
 			GameData opponentGameData = gameDataMap.get(getOpponent(user));
 
 			//If a player has sent in all the translations do nothing and notify the player he can't do anything
 			if (userGameData.numWords == numWords) {
-				user.getHandler().write(Response.GAME_FINISHED.getCode());
-				return;
+				user.getHandler().write(Response.GAME_FINISHED);
+				return false;
 			}
 
 			//Check if the received translation matches and award (or decrease) points accordingly
 			if (wordsMap.get(userGameData.currentWord).contains(translatedWord)) {
 				userGameData.correctAnswers++;
-				user.incrScore(correctAnswerPoints);
+				userGameData.delta += correctAnswerPoints;
 			} else {
 				userGameData.wrongAnswers++;
-				user.decrScore(wrongAnswerPoints);
+				userGameData.delta -= wrongAnswerPoints;
 			}
 			userGameData.numWords++;
 
 			//If both players have finished sending in their translations finish the game
 			if (userGameData.numWords == numWords && opponentGameData.numWords == numWords) {
 				gameTimer.cancel();
-				finishGame();
-				return;
+				return endGame();
 			}
 
 			//Notify the player that he can't send in anymore words
 			if (userGameData.numWords == numWords) {
-				user.getHandler().write(Response.GAME_FINISHED.getCode());
+				user.getHandler().write(Response.GAME_FINISHED);
 			}
 
 			//Send the next word to the player
 			if (userGameData.numWords < numWords) {
 				userGameData.currentWord = wordsList.get(userGameData.numWords);
-				user.getHandler().write(Response.SEND_WORD.getCode(userGameData.numWords + 1, numWords, userGameData.currentWord));
+				user.getHandler().write(Response.SEND_WORD, userGameData.numWords + 1, numWords, userGameData.currentWord);
 			}
-		} catch (NoHandlerAssignedException e) {e.printStackTrace();}		
+		} catch (NoHandlerAssignedException e) {e.printStackTrace();}
+		return false;
 	}
 
 	/**
 	 * Handles aborting the challenge when a user has decided to quit.
 	 * @param user The user who quit.
 	 */
-	public synchronized void abortChallenge(User user) {
+	public void abortChallenge(User user) {
+		notifyAbort(user);
+		releasePlayers();
+	}
+
+	private synchronized void notifyAbort(User user) {
 		//Cancel the timers
 		gameTimer.cancel();
 		acceptanceTimer.cancel();
+		commitAbortedGame();
 
 		//Notify both players that the challenge is no more and set their state accordingly
 		User opponent = getOpponent(user);
 		try {
-			opponent.getHandler().write(Response.QUIT_CHALLENGE.getCode(user.getName()));
+			opponent.getHandler().write(Response.QUIT_CHALLENGE, user.getName());
 		} catch (NoHandlerAssignedException e) {};
-		opponent.setChallenge(null);
-		opponent.setState(UserState.IDLE);
-		user.setChallenge(null);
-		user.setState(UserState.IDLE);
 		Logger.logInfo("Aborted challenge between ", player1.getName(), " and ", player2.getName());
 	}
 
 	/**
 	 * Handles aborting the challenge when a timer runs out.
 	 */
-	public synchronized void abortChallenge() {
+	public void abortChallenge() {
+		notifyTimeout();
+		releasePlayers();
+	}
+
+	private synchronized void notifyTimeout() {
 		gameTimer.cancel();
 		acceptanceTimer.cancel();
+		commitAbortedGame();
 		try {
-			player1.getHandler().write(Response.GAME_TIMEDOUT.getCode());
-			player2.getHandler().write(Response.GAME_TIMEDOUT.getCode());
+			player1.getHandler().write(Response.GAME_TIMEDOUT);
+			player2.getHandler().write(Response.GAME_TIMEDOUT);
 		} catch (NoHandlerAssignedException e) {}
-		player1.setChallenge(null);	
-		player1.setState(UserState.IDLE);
-		player2.setChallenge(null);	
-		player2.setState(UserState.IDLE);
 		Logger.logInfo("Aborted challenge between ", player1.getName(), " and ", player2.getName());
 	}
 
@@ -0,0 +1,380 @@
+package wordquizzle.wqserver;
+
+import wordquizzle.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * The {@code ChangeLog} class implements the append-only log of the changes made to the database.
+ * Every record is framed as {@code [length][crc32][type][payload]} so that a torn write at the tail of the log
+ * can be detected and discarded while replaying.
+ * <p>
+ * Records are appended to the active segment ({@code database.log}); when a checkpoint starts the active segment
+ * is sealed and renamed to {@code database.log.<n>}, sealed segments are deleted once the snapshot covering them
+ * has been written.
+ */
+public class ChangeLog {
+
+	/**
+	 * The kind of change stored inside a record.
+	 */
+	public enum RecordType {
+		USER_CREATED,
+		SCORE,
+		FRIENDSHIP;
+	}
+
+	/**
+	 * A single change made to the database.
+	 * Records are idempotent: a score record carries the resulting score along with the delta, so replaying a
+	 * record whose effect is already part of the snapshot leaves the user unchanged.
+	 */
+	public static class Record {
+		public final RecordType type;
+		public final String name;
+		public final String arg;
+		public final int delta;
+		public final int score;
+
+		private Record(RecordType type, String name, String arg, int delta, int score) {
+			this.type = type;
+			this.name = name;
+			this.arg = arg;
+			this.delta = delta;
+			this.score = score;
+		}
+
+		/**
+		 * Builds the record describing the registration of {@code user}.
+		 * @param user the registered user.
+		 * @return the record.
+		 */
+		public static Record userCreated(User user) {
+			return new Record(RecordType.USER_CREATED, user.getName(), user.getPassword(), 0, user.getScore());
+		}
+
+		/**
+		 * Builds the record describing a change of {@code delta} points in the score of user {@code name}.
+		 * @param name  the user's nickname.
+		 * @param delta the points gained (or lost if negative).
+		 * @param score the resulting score.
+		 * @return the record.
+		 */
+		public static Record score(String name, int delta, int score) {
+			return new Record(RecordType.SCORE, name, null, delta, score);
+		}
+
+		/**
+		 * Builds the record describing {@code friend} being added to {@code name}'s friend list.
+		 * @param name   the user's nickname.
+		 * @param friend the friend's nickname.
+		 * @return the record.
+		 */
+		public static Record friendship(String name, String friend) {
+			return new Record(RecordType.FRIENDSHIP, name, friend, 0, 0);
+		}
+	}
+
+	private static final int HEADER_SIZE = 8;
+
+	private Path file;
+	private FileChannel channel;
+	private long size;
+	private int nextSegment;
+	private Durability durability;
+	private CommitStats stats;
+	private boolean synced = true;
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+	private DataOutputStream out = new DataOutputStream(bytes);
+	private CRC32 crc = new CRC32();
+
+	/**
+	 * Opens the log stored at {@code file} for appending, creating it if it doesn't exist.
+	 * @param file       the log file.
+	 * @param durability when the appended records are synced to disk.
+	 * @param stats      where to account for the time spent writing and syncing.
+	 * @throws IOException if the file can't be opened.
+	 */
+	public ChangeLog(Path file, Durability durability, CommitStats stats) throws IOException {
+		this.file = file;
+		this.durability = durability;
+		this.stats = stats;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		                                StandardOpenOption.APPEND);
+		this.size = channel.size();
+		List<Path> sealed = getSealedSegments(file);
+		this.nextSegment = sealed.isEmpty() ? 1 : getSegmentNumber(sealed.get(sealed.size() - 1)) + 1;
+	}
+
+	/**
+	 * Appends a record to the log.
+	 * The record is encoded in memory and written with a single call, so the cost does not depend on the
+	 * number of users inside the database.
+	 * @param record the record to append.
+	 * @throws IOException if the write fails.
+	 */
+	public void append(Record record) throws IOException {
+		append(Collections.singletonList(record));
+	}
+
+	/**
+	 * Appends a batch of records to the log with a single write.
+	 * @param records the records to append.
+	 * @throws IOException if the write fails.
+	 */
+	public synchronized void append(List<Record> records) throws IOException {
+		long start = System.nanoTime();
+		bytes.reset();
+		int[] offsets = new int[records.size() + 1];
+		int n = 0;
+		for (Record record : records) {
+			offsets[n++] = bytes.size();
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeByte(record.type.ordinal());
+			out.writeUTF(record.name);
+			switch (record.type) {
+				case USER_CREATED:
+					out.writeUTF(record.arg);
+					break;
+				case SCORE:
+					out.writeInt(record.delta);
+					out.writeInt(record.score);
+					break;
+				case FRIENDSHIP:
+					out.writeUTF(record.arg);
+					break;
+			}
+		}
+		out.flush();
+		offsets[n] = bytes.size();
+
+		//Fill in the headers now that the payload lengths are known
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		for (int i = 0; i < n; i++) {
+			int length = offsets[i + 1] - offsets[i] - HEADER_SIZE;
+			crc.reset();
+			crc.update(buffer.array(), offsets[i] + HEADER_SIZE, length);
+			buffer.putInt(offsets[i], length);
+			buffer.putInt(offsets[i] + 4, (int)crc.getValue());
+		}
+		while (buffer.hasRemaining()) size += channel.write(buffer);
+		synced = false;
+		if (durability == Durability.COMMIT) sync();
+		stats.commit(records.size(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Syncs the active segment to disk if anything has been appended since the last sync.
+	 * @throws IOException if the sync fails.
+	 */
+	public synchronized void sync() throws IOException {
+		if (synced) return;
+		long start = System.nanoTime();
+		channel.force(false);
+		synced = true;
+		stats.sync(System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the size in bytes of the active segment.
+	 * @return the size in bytes of the active segment.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Seals the active segment and starts a new one.
+	 * If the active segment is empty nothing is sealed and the number of the last sealed segment is returned.
+	 * @return the number of the sealed segment.
+	 * @throws IOException if the segment can't be renamed or the new one can't be created.
+	 */
+	public synchronized int rotate() throws IOException {
+		if (size == 0) return nextSegment - 1;
+		if (durability != Durability.NONE) sync();
+		channel.close();
+		int segment = nextSegment++;
+		Files.move(file, getSegment(file, segment));
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+		                           StandardOpenOption.APPEND);
+		syncDirectory(file);
+		size = 0;
+		synced = true;
+		return segment;
+	}
+
+	/**
+	 * Deletes the sealed segments up to (and including) segment {@code last}.
+	 * @param last the number of the last segment to delete.
+	 * @throws IOException if a segment can't be deleted.
+	 */
+	public void deleteSegments(int last) throws IOException {
+		for (Path segment : getSealedSegments(file))
+			if (getSegmentNumber(segment) <= last) Files.delete(segment);
+	}
+
+	/**
+	 * Returns {@code true} iff there are sealed segments waiting to be compacted.
+	 * @return {@code true} iff there are sealed segments waiting to be compacted.
+	 */
+	public boolean hasSealedSegments() {
+		try {
+			return !getSealedSegments(file).isEmpty();
+		} catch (IOException e) {return false;}
+	}
+
+	/**
+	 * Returns the log's file.
+	 * @return the log's file.
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Closes the log.
+	 */
+	public synchronized void close() {
+		try {
+			if (durability != Durability.NONE) sync();
+			channel.close();
+		} catch (IOException e) {e.printStackTrace();}
+	}
+
+	private static Path getSegment(Path file, int segment) {
+		return file.resolveSibling(file.getFileName() + "." + segment);
+	}
+
+	private static int getSegmentNumber(Path segment) {
+		String name = segment.getFileName().toString();
+		return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+	}
+
+	/**
+	 * Returns the sealed segments of the log at {@code file}, oldest first.
+	 * @param file the active segment.
+	 * @return the sealed segments.
+	 * @throws IOException if the directory can't be listed.
+	 */
+	private static List<Path> getSealedSegments(Path file) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		String prefix = file.getFileName() + ".";
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*")) {
+			for (Path segment : stream) {
+				if (segment.getFileName().toString().substring(prefix.length()).matches("\\d+"))
+					segments.add(segment);
+			}
+		}
+		segments.sort(Comparator.comparingInt(ChangeLog::getSegmentNumber));
+		return segments;
+	}
+
+	/**
+	 * Syncs the directory containing {@code file} to disk, so that the files just renamed or created inside it
+	 * survive a crash.
+	 * @param file the file.
+	 */
+	static void syncDirectory(Path file) {
+		Path directory = file.toAbsolutePath().getParent();
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {/*directories can't be opened on every platform, e.g. Windows*/}
+	}
+
+	/**
+	 * Deletes every segment of the log at {@code file}.
+	 * @param file the active segment.
+	 * @throws IOException if a segment can't be deleted.
+	 */
+	public static void delete(Path file) throws IOException {
+		for (Path segment : getSealedSegments(file)) Files.delete(segment);
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Replays the sealed segments and then the active segment of the log at {@code file}.
+	 * @param file     the active segment.
+	 * @param consumer the record consumer.
+	 * @return the number of records read.
+	 * @throws IOException if a segment can't be read.
+	 */
+	public static int replayAll(Path file, Consumer<Record> consumer) throws IOException {
+		int count = 0;
+		for (Path segment : getSealedSegments(file)) count += replay(segment, consumer);
+		return count + replay(file, consumer);
+	}
+
+	/**
+	 * Reads every record stored in the log at {@code file} and hands it to {@code consumer}.
+	 * If the tail of the log is incomplete or corrupted (e.g. the server crashed while writing it)
+	 * the tail is discarded and the file is truncated to the last valid record.
+	 * @param file     the log file.
+	 * @param consumer the record consumer.
+	 * @return the number of records read.
+	 * @throws IOException if the file can't be read.
+	 */
+	public static int replay(Path file, Consumer<Record> consumer) throws IOException {
+		if (!Files.exists(file)) return 0;
+		byte[] log = Files.readAllBytes(file);
+		ByteBuffer buffer = ByteBuffer.wrap(log);
+		CRC32 crc = new CRC32();
+		int count = 0;
+		int valid = 0;
+		try {
+			while (buffer.remaining() >= HEADER_SIZE) {
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining()) break;
+				crc.reset();
+				crc.update(log, buffer.position(), length);
+				if ((int)crc.getValue() != checksum) break;
+
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(log, buffer.position(), length));
+				RecordType type = RecordType.values()[in.readByte()];
+				String name = in.readUTF();
+				switch (type) {
+					case USER_CREATED:
+						consumer.accept(new Record(type, name, in.readUTF(), 0, 0));
+						break;
+					case SCORE:
+						int delta = in.readInt();
+						consumer.accept(Record.score(name, delta, in.readInt()));
+						break;
+					case FRIENDSHIP:
+						consumer.accept(Record.friendship(name, in.readUTF()));
+						break;
+				}
+				buffer.position(buffer.position() + length);
+				valid = buffer.position();
+				count++;
+			}
+		} catch (EOFException | ArrayIndexOutOfBoundsException e) {/*corrupted record, stop here*/}
+
+		if (valid < log.length) {
+			Logger.logWarn("Discarding ", log.length - valid, " bytes of incomplete records from ", file);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				channel.truncate(valid);
+			}
+		}
+		return count;
+	}
+}
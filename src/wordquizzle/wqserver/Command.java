@@ -0,0 +1,86 @@
+package wordquizzle.wqserver;
+
+import java.util.Arrays;
+
+/**
+ * The {@code Command} enum lists the commands a client can send, see {@link MessageHandler}.
+ * <p>
+ * Commands are resolved straight from the message with a perfect hash: the multiplier of a hash of the command's
+ * length and first and last characters is picked when the class is loaded so that no two commands share a slot, so a
+ * lookup hashes the command once and compares it with a single candidate, without extracting it from the message.
+ */
+public enum Command {
+	LOGIN            ("login"),
+	LOGOUT           ("logout"),
+	FRIEND_LIST      ("lista_amici"),
+	LEADERBOARD      ("mostra_classifica"),
+	FRIEND_LIST_PAGE ("lista_amici_pagina"),
+	LEADERBOARD_PAGE ("mostra_classifica_pagina"),
+	SCORE            ("mostra_punteggio"),
+	ADD_FRIEND       ("aggiungi_amico"),
+	CHALLENGE        ("sfida"),
+	ACCEPT           ("yes"),
+	REJECT           ("no"),
+	CLOSE            ("close"),
+	WORD             ("word");
+
+	private static final char DELIMITER = ':';
+	private static final int SLOTS = 32;
+	private static final Command[] table = new Command[SLOTS];
+	private static final int seed;
+
+	static {
+		int candidate = 1;
+		search:
+		for (;; candidate++) {
+			if (candidate == Integer.MAX_VALUE) throw new IllegalStateException("No perfect hash for the commands");
+			Arrays.fill(table, null);
+			for (Command command : values()) {
+				int slot = slot(command.command, command.command.length(), candidate);
+				if (table[slot] != null) continue search;
+				table[slot] = command;
+			}
+			break;
+		}
+		seed = candidate;
+	}
+
+	private final String command;
+
+	private Command(String command) {
+		this.command = command;
+	}
+
+	/**
+	 * Returns the command as it's sent by the clients.
+	 * @return the command as it's sent by the clients.
+	 */
+	public String getCommand() {
+		return command;
+	}
+
+	/**
+	 * Hashes the first {@code length} characters of {@code msg} into a slot of the table, looking only at the
+	 * length and the first and last characters since that's enough to tell the commands apart.
+	 */
+	private static int slot(CharSequence msg, int length, int seed) {
+		if (length == 0) return 0;
+		int hash = (msg.charAt(0) * seed + msg.charAt(length - 1)) * seed + length;
+		return (hash ^ (hash >>> 16)) & (SLOTS - 1);
+	}
+
+	/**
+	 * Returns the command {@code msg} begins with, i.e. its first token.
+	 * @param msg the message.
+	 * @return the command or {@code null} if there's no such command.
+	 */
+	public static Command of(CharSequence msg) {
+		int length = 0;
+		while (length < msg.length() && msg.charAt(length) != DELIMITER) length++;
+		Command command = table[slot(msg, length, seed)];
+		if (command == null || command.command.length() != length) return null;
+		for (int i = 0; i < length; i++)
+			if (command.command.charAt(i) != msg.charAt(i)) return null;
+		return command;
+	}
+}
@@ -3,84 +3,78 @@ package wordquizzle.wqserver;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Scanner;
-
-import com.google.gson.Gson;
 
 import wordquizzle.Logger;
 import wordquizzle.Response;
+import wordquizzle.Tokenizer;
 import wordquizzle.UserState;
 import wordquizzle.wqserver.Database.UserNotFoundException;
 import wordquizzle.wqserver.User.*;
 
 /**
  * The {@code CommandHandler} abstract class describes how to
- * handle commands sent by an user
+ * handle commands sent by an user.
+ * Handlers are stateless and shared by every connection, see {@link MessageHandler}.
  */
 public abstract class CommandHandler {
-	protected EventHandler evh;
-	protected User user;
-
-	public CommandHandler(EventHandler evh, User user) {
-		this.evh = evh;
-		this.user = user;
-	}
 
 	/**
 	 * Process the given command.
-	 * @param scanner scanner containing the command.
+	 * @param evh       the EventHandler that received the command.
+	 * @param tokenizer tokenizer positioned after the command's name.
 	 */
-	public abstract void handle(Scanner scanner);
+	public abstract void handle(EventHandler evh, Tokenizer tokenizer);
 }
 
 /**
  * The {@code LoginHandler} class handles login requests.
  */
 class LoginHandler extends CommandHandler {
-
-	public LoginHandler(EventHandler evh, User user) {
-		super(evh, user);
-	}
-	
-	public void handle(Scanner scanner) {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
 		try {
-			String username = scanner.next();
-			String password = scanner.next();
+			String username = tokenizer.next();
+			String password = tokenizer.next();
 
 			//UDP port the user is listening on.
-			int port = new Integer(scanner.next()).intValue();
+			int port = tokenizer.nextInt();
 			try {
-				//Fetch the user from the database
-				User user = Database.getDatabase().getUser(username);
-
-				//You can't login again if you're already logged in
-				if (user.getState() != UserState.OFFLINE) {
-					evh.write(Response.ALREADYLOGGEDIN_FAILURE.getCode(user));
-					return;
-				}
-
-				//Check if the password sent by the user matches the one stored in the database, if so log the user in.
-				if (user.checkPassword(password)) {
-					//Assing the user to the EventHandler and viceversa, then log the user in
-					user.setHandler(evh);
-					evh.setUser(user);
-					user.login(port);
-					evh.write(Response.LOGIN_SUCCESS.getCode(username));
-					Logger.logInfo("User ", username, " logged in succesfully");
-				} else {
-					evh.write(Response.LOGIN_FAILURE.getCode());
-					return;
+				//Fetch the user from the database, pinned so that it can't be evicted and loaded twice before
+				//logging in pins it for good
+				User user = Database.getDatabase().getPinnedUser(username);
+				try {
+					//You can't login again if you're already logged in
+					if (user.getState() != UserState.OFFLINE) {
+						evh.write(Response.ALREADYLOGGEDIN_FAILURE, user.getName());
+						return;
+					}
+
+					//Check if the password sent by the user matches the one stored in the database, if so log the user in.
+					if (user.checkPassword(password)) {
+						//Assing the user to the EventHandler and viceversa, then log the user in
+						user.setHandler(evh);
+						user.login(port);
+						evh.setUser(user);
+
+						//The connection may have been closed while the login was waiting for a worker
+						if (evh.isClosed()) {
+							user.logoutNoNotify();
+							return;
+						}
+						evh.write(Response.LOGIN_SUCCESS, username);
+						Logger.logInfo("User ", username, " logged in succesfully");
+					} else {
+						evh.write(Response.LOGIN_FAILURE);
+						return;
+					}
+				} finally {
+					Database.getDatabase().release(user);
 				}
 			} catch (UserNotFoundException e) {
-				evh.write(Response.USERNOTEXISTS_FAILURE.getCode(username));
+				evh.write(Response.USERNOTEXISTS_FAILURE, username);
 			}
 		} catch (NoSuchElementException e) {
-			evh.write(Response.NOUSERPASS_FAILURE.getCode());
+			evh.write(Response.NOUSERPASS_FAILURE);
 		}
 	}
 }
@@ -89,14 +83,11 @@ class LoginHandler extends CommandHandler {
  * The {@code LogoutHandler} class handles logout requests.
  */
 class LogoutHandler extends CommandHandler {
-	public LogoutHandler(EventHandler evh, User user) {
-		super(evh, user);
-	};
-
-	public void handle(Scanner scanner) {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		User user = evh.getUser();
 		if (user.getState() != UserState.OFFLINE) {
 			user.logout();
-			evh.write("Bye " + user.getName());
+			evh.write(Response.BYE, user.getName());
 		}
 	}
 }
@@ -104,16 +95,15 @@ class LogoutHandler extends CommandHandler {
 /**
  * The {@code FriendListHandler} class handles "show friendlist" requests.
  */
-class FriendListHandler extends CommandHandler {	
-	public FriendListHandler(EventHandler evh, User user) {
-		super(evh, user);
-	};
-
-	public void handle(Scanner scanner) {
-		//Build the friendlist and send it as a JSON array
-		List<String> userlist = new ArrayList<>(user.getFriendList().size());
-		user.getFriendList().forEach((User friend) -> userlist.add(friend.getName()));
-		evh.write(Response.FRIENDLIST.getCode(new Gson().toJson(userlist)));
+class FriendListHandler extends CommandHandler {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		//Stream the friendlist as a JSON array
+		//Only the nicknames are needed, so the friends are never loaded
+		FriendGraph graph = FriendGraph.getGraph();
+		int[] friends = graph.getFriends(evh.getUser().getId());
+		JsonResponseWriter writer = JsonResponseWriter.getWriter().begin(evh, Response.FRIENDLIST).beginArray();
+		for (int friend : friends) writer.value(graph.getName(friend));
+		writer.endArray().end();
 	}
 }
 
@@ -121,65 +111,151 @@ class FriendListHandler extends CommandHandler {
  * The {@code LeaderboardHandler} class handles "show leaderboard" requests.
  */
 class LeaderboardHandler extends CommandHandler {
-	public LeaderboardHandler(EventHandler evh, User user) {
-		super(evh, user);
-	};
-
-	public void handle(Scanner scanner) {
-		//Build a list of (nick, score) pairs
-		LinkedHashMap<String, Integer> userlist = new LinkedHashMap<>();
-		userlist.put(user.getName(), user.getScore());
-		user.getFriendList().forEach((User friend) -> userlist.put(friend.getName(), friend.getScore()));
-
-		//Build another list of (nick, score), but this time sorted in descending order and send it as a JSON object
-		LinkedHashMap<String, Integer> userlist_sorted= new LinkedHashMap<>();
-		userlist.entrySet().stream()
-				.sorted(Map.Entry.comparingByValue((v1, v2) -> v1 >= v2 ? -1 : 0))
-		        .forEach(entry -> userlist_sorted.put(entry.getKey(), entry.getValue()));
-		evh.write(Response.LEADERBOARD.getCode(new Gson().toJson(userlist_sorted)));
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		Ranking ranking = Ranking.get(evh.getUser(), 0, Integer.MAX_VALUE);
+
+		//Stream the sorted (nick, score) pairs as a JSON object
+		JsonResponseWriter writer = JsonResponseWriter.getWriter().begin(evh, Response.LEADERBOARD).beginObject();
+		for (int i = 0; i < ranking.size(); i++) writer.member(ranking.getName(i), ranking.getScore(i));
+		writer.endObject().end();
 	}
 }
 
 /**
- * The {@code ScoreHandler} class handles "show score" requests.
+ * The {@code PageHandler} abstract class handles the paged versions of the "show friendlist" and
+ * "show leaderboard" requests: {@code cmd:offset:limit[:version]}.
+ * <p>
+ * The page is sent as a JSON object holding the version of the data it was taken from along with the offset, the
+ * limit and the total number of entries. A client that sends back the version it already has is answered with
+ * {@code NOT_MODIFIED} instead, if the data hasn't changed since.
  */
-class ScoreHandler extends CommandHandler {
-	public ScoreHandler(EventHandler evh, User user) {
-		super(evh, user);
+abstract class PageHandler extends CommandHandler {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		int offset;
+		int limit;
+		long known = -1;
+		try {
+			offset = tokenizer.nextInt();
+			limit = tokenizer.nextInt();
+			if (tokenizer.hasNext()) known = tokenizer.nextLong();
+		} catch (NoSuchElementException e) {
+			//InputMismatchException included
+			evh.write(Response.INVALID_COMMAND);
+			return;
+		}
+		if (offset < 0 || limit <= 0) {
+			evh.write(Response.INVALID_COMMAND);
+			return;
+		}
+		handlePage(evh, offset, Math.min(limit, Config.PAGE_MAX), known);
+	}
 
-	};
+	/**
+	 * Sends the requested page.
+	 * @param evh    the EventHandler that received the request.
+	 * @param offset the index of the page's first entry.
+	 * @param limit  the maximum number of entries in the page.
+	 * @param known  the version the client already has, {@code -1} if none.
+	 */
+	protected abstract void handlePage(EventHandler evh, int offset, int limit, long known);
 
-	public void handle(Scanner scanner) {
-		evh.write(Response.SCORE.getCode(user.getScore()));
+	/**
+	 * Returns the index after the page's last entry.
+	 */
+	protected static int pageEnd(int offset, int limit, int total) {
+		return (int)Math.min(total, (long)offset + limit);
+	}
+
+	/**
+	 * Starts writing a page, up to the member holding its entries.
+	 */
+	protected static JsonResponseWriter beginPage(EventHandler evh, Response response, long version, int offset,
+	                                              int limit, int total, String entries) {
+		return JsonResponseWriter.getWriter().begin(evh, response).beginObject()
+		                         .member("version", version)
+		                         .member("offset", offset)
+		                         .member("limit", limit)
+		                         .member("total", total)
+		                         .name(entries);
 	}
 }
 
 /**
- * The {@code AddFriendHandler} class handles "add friend" requests.
+ * The {@code FriendListPageHandler} class handles paged "show friendlist" requests.
  */
-class AddFriendHandler extends CommandHandler {
-	public AddFriendHandler(EventHandler evh, User user) {
-		super(evh, user);
+class FriendListPageHandler extends PageHandler {
+	protected void handlePage(EventHandler evh, int offset, int limit, long known) {
+		User user = evh.getUser();
+		//Read the version before the friends, a friendship added meanwhile will bump it again
+		long version = user.getFriendsVersion();
+		if (version == known) {
+			evh.write(Response.NOT_MODIFIED, Command.FRIEND_LIST_PAGE.getCommand(), offset, limit);
+			return;
+		}
+
+		FriendGraph graph = FriendGraph.getGraph();
+		int[] friends = graph.getFriends(user.getId());
+		int end = pageEnd(offset, limit, friends.length);
+		JsonResponseWriter writer = beginPage(evh, Response.FRIENDLIST_PAGE, version, offset, limit, friends.length,
+		                                      "friends").beginArray();
+		for (int i = offset; i < end; i++) writer.value(graph.getName(friends[i]));
+		writer.endArray().endObject().end();
+	}
+}
+
+/**
+ * The {@code LeaderboardPageHandler} class handles paged "show leaderboard" requests.
+ */
+class LeaderboardPageHandler extends PageHandler {
+	protected void handlePage(EventHandler evh, int offset, int limit, long known) {
+		User user = evh.getUser();
+		if (Ranking.getVersion(user) == known) {
+			evh.write(Response.NOT_MODIFIED, Command.LEADERBOARD_PAGE.getCommand(), offset, limit);
+			return;
+		}
+
+		//Only the page is copied out of the user's ranking
+		Ranking ranking = Ranking.get(user, offset, limit);
+		JsonResponseWriter writer = beginPage(evh, Response.LEADERBOARD_PAGE, ranking.getVersion(), offset, limit,
+		                                      ranking.getTotal(), "ranking").beginObject();
+		for (int i = 0; i < ranking.size(); i++) writer.member(ranking.getName(i), ranking.getScore(i));
+		writer.endObject().endObject().end();
+	}
+}
+
+/**
+ * The {@code ScoreHandler} class handles "show score" requests.
+ */
+class ScoreHandler extends CommandHandler {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		User user = evh.getUser();
+		evh.write(Response.SCORE, user.getScore());
 	}
+}
 
-	public void handle(Scanner scanner) {
+/**
+ * The {@code AddFriendHandler} class handles "add friend" requests.
+ */
+class AddFriendHandler extends CommandHandler {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		User user = evh.getUser();
 		try {
-			String name = scanner.next();
+			String name = tokenizer.next();
 			try {
 				user.addFriend(name);
 
 				//If X is friend of Y then Y is friend of X
 				Database.getDatabase().getUser(name).addFriend(user.getName());
-				evh.write(Response.ADDFRIEND_SUCCESS.getCode(user, name));
+				evh.write(Response.ADDFRIEND_SUCCESS, user.getName(), name);
 			} catch (UserNotFoundException e) {
-				evh.write(Response.USERNOTEXISTS_FAILURE.getCode(name));
+				evh.write(Response.USERNOTEXISTS_FAILURE, name);
 			} catch (AlreadyFriendsException e) {
-				evh.write(Response.ALREADYFRIENDS_FAILURE.getCode(name));
+				evh.write(Response.ALREADYFRIENDS_FAILURE, name);
 			} catch (SelfFriendException e) {
-				evh.write(Response.FRIENDSELF_FAILURE.getCode());
+				evh.write(Response.FRIENDSELF_FAILURE);
 			}
 		} catch (NoSuchElementException e) {
-			evh.write(Response.NOUSERNAME_FAILURE.getCode());
+			evh.write(Response.NOUSERNAME_FAILURE);
 		}
 	}
 }
@@ -189,26 +265,22 @@ class AddFriendHandler extends CommandHandler {
  * The {@code IssueChallengehandler} class handles challenge requests.
  */
 class IssueChallengeHandler extends CommandHandler {
-
-	public IssueChallengeHandler(EventHandler evh, User user) {
-		super(evh, user);
-	}
-
-	public void handle(Scanner scanner) {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		User user = evh.getUser();
 		try {
-			String name = scanner.next();
+			String name = tokenizer.next();
 			try {
 				User opponent = Database.getDatabase().getUser(name);
 
 				//If the opponent is not our friend we can't challenge him
-				if (!opponent.getFriendList().contains(this.user)) {
-					evh.write(Response.NOTFRIENDS_FAILURE.getCode(name));
+				if (!opponent.isFriend(user)) {
+					evh.write(Response.NOTFRIENDS_FAILURE, name);
 					return;
 				}
 
 				//If the opponent is not idle we can't challenge him
 				if (opponent.getState() != UserState.IDLE) {
-					evh.write(Response.CANTPLAY_FAILURE.getCode(name));
+					evh.write(Response.CANTPLAY_FAILURE, name);
 					return;
 				}
 
@@ -228,7 +300,7 @@ class IssueChallengeHandler extends CommandHandler {
 						opponent.setState(UserState.CHALLENGED);
 
 						//and notify the client that we're waiting...
-						evh.write(Response.WAITINGRESPONSE.getCode());
+						evh.write(Response.WAITINGRESPONSE);
 						
 						//Finally create the challenge
 						Challenge challenge = new Challenge(user, opponent);
@@ -239,8 +311,8 @@ class IssueChallengeHandler extends CommandHandler {
 					} catch (Exception e) {e.printStackTrace();}
 					finally {udpsocket.close();}
 				} catch (Exception e) {e.printStackTrace();}
-			} catch (UserNotFoundException e) {evh.write(Response.USERNOTEXISTS_FAILURE.getCode(name));}
-		} catch (NoSuchElementException e) {evh.write(Response.NOUSERNAME_FAILURE.getCode());}
+			} catch (UserNotFoundException e) {evh.write(Response.USERNOTEXISTS_FAILURE, name);}
+		} catch (NoSuchElementException e) {evh.write(Response.NOUSERNAME_FAILURE);}
 	}
 }
 
@@ -248,14 +320,42 @@ class IssueChallengeHandler extends CommandHandler {
  * The {@code SendWordCommandHandler} class handles the received translations sent by the players.
  */
 class SendWordCommandHandler extends CommandHandler {
-
-	public SendWordCommandHandler(EventHandler evh, User user) {
-		super(evh, user);
-	}
-	public void handle(Scanner scanner) {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		User user = evh.getUser();
 		try {
-			String word = scanner.next();
+			String word = tokenizer.next();
 			user.getChallenge().receiveWord(user, word);
 		} catch (NoSuchElementException e) {}
 	}	
-}
\ No newline at end of file
+}
+
+/**
+ * The {@code ChallengeLogoutHandler} class handles logout requests during a challenge, aborting it first.
+ */
+class ChallengeLogoutHandler extends LogoutHandler {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		//Handle the challenge request abort too
+		evh.getUser().getChallenge().abortChallenge(evh.getUser());
+		super.handle(evh, tokenizer);
+	}
+}
+
+/**
+ * The {@code AbortChallengeHandler} class handles rejected challenge requests and, for the GUI only, the challenge
+ * windows being closed.
+ */
+class AbortChallengeHandler extends CommandHandler {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		evh.getUser().getChallenge().abortChallenge(evh.getUser());
+	}
+}
+
+/**
+ * The {@code AcceptChallengeHandler} class handles accepted challenge requests.
+ */
+class AcceptChallengeHandler extends CommandHandler {
+	public void handle(EventHandler evh, Tokenizer tokenizer) {
+		//Loading the words may take a while
+		evh.runBlocking(evh.getUser().getChallenge());
+	}
+}
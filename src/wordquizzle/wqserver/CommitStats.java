@@ -0,0 +1,44 @@
+package wordquizzle.wqserver;
+
+/**
+ * The {@code CommitStats} class keeps track of how long the database takes to commit and sync its changes,
+ * so that the durability policy can be picked knowing its cost.
+ */
+public class CommitStats {
+	private long commits = 0;
+	private long records = 0;
+	private long commitNanos = 0;
+	private long maxCommitNanos = 0;
+	private long syncs = 0;
+	private long syncNanos = 0;
+	private long maxSyncNanos = 0;
+
+	/**
+	 * Accounts for a commit.
+	 * @param records number of changes committed.
+	 * @param nanos   time spent committing, syncing included.
+	 */
+	public synchronized void commit(int records, long nanos) {
+		this.commits++;
+		this.records += records;
+		this.commitNanos += nanos;
+		this.maxCommitNanos = Math.max(maxCommitNanos, nanos);
+	}
+
+	/**
+	 * Accounts for a sync to disk.
+	 * @param nanos time spent syncing.
+	 */
+	public synchronized void sync(long nanos) {
+		this.syncs++;
+		this.syncNanos += nanos;
+		this.maxSyncNanos = Math.max(maxSyncNanos, nanos);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d commits (%d changes), avg %dus max %dus; %d fsyncs, avg %dus max %dus",
+		                     commits, records, commits > 0 ? commitNanos / commits / 1000 : 0, maxCommitNanos / 1000,
+		                     syncs, syncs > 0 ? syncNanos / syncs / 1000 : 0, maxSyncNanos / 1000);
+	}
+}
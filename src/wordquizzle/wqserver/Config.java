@@ -0,0 +1,160 @@
+package wordquizzle.wqserver;
+
+/**
+ * The {@code Config} class collects the server tunables.
+ * Every value can be overridden at startup through the matching {@code -Dwq.*} system property.
+ */
+public final class Config {
+
+	private Config() {}
+
+	/**
+	 * Which {@link StorageEngine} keeps the user database: {@code "memory"} keeps every user in memory and
+	 * persists them as described by {@link #DB_PERSISTENCE}, {@code "kv"} keeps them in the on-disk
+	 * key-value store {@code database.kv} and loads them on demand.
+	 */
+	public static final String DB_ENGINE = System.getProperty("wq.db.engine", "memory");
+
+	/**
+	 * How the user database is persisted by the {@code "memory"} engine: {@code "log"} appends a small record per change to
+	 * {@code database.log}, {@code "json"} rewrites the whole {@code database.json} on every change.
+	 */
+	public static final String DB_PERSISTENCE = System.getProperty("wq.db.persistence", "log");
+
+	/**
+	 * Milliseconds between two checkpoints of the user database.
+	 */
+	public static final long CHECKPOINT_INTERVAL = Long.getLong("wq.checkpoint.interval", 60L * 1000L);
+
+	/**
+	 * Size in bytes the change log can grow to before a checkpoint is started ahead of time.
+	 */
+	public static final long CHECKPOINT_LOG_SIZE = Long.getLong("wq.checkpoint.logsize", 16L * 1024L * 1024L);
+
+	/**
+	 * If {@code true} changes to the user database are queued and committed in batches by a background
+	 * flusher instead of being written out by the thread that made them. Only used by the {@code "memory"} engine.
+	 */
+	public static final boolean DB_WRITE_BEHIND = Boolean.getBoolean("wq.db.writebehind");
+
+	/**
+	 * Milliseconds between two batched commits when write-behind is enabled.
+	 */
+	public static final long FLUSH_INTERVAL = Long.getLong("wq.db.flush.interval", 100L);
+
+	/**
+	 * Number of queued changes which triggers a batched commit ahead of time when write-behind is enabled.
+	 */
+	public static final int FLUSH_CHANGES = Integer.getInteger("wq.db.flush.changes", 1000);
+
+	/**
+	 * When the changes to the user database are synced to disk, see {@link Durability}.
+	 */
+	public static final Durability DB_DURABILITY = Durability.parse(System.getProperty("wq.db.durability"),
+	                                                                Durability.INTERVAL);
+
+	/**
+	 * Milliseconds between two syncs to disk with the {@link Durability#INTERVAL} policy.
+	 */
+	public static final long FSYNC_INTERVAL = Long.getLong("wq.db.fsync.interval", 1000L);
+
+	/**
+	 * Maximum number of offline users the {@code "kv"} engine keeps in memory, online users and users playing
+	 * a challenge are always kept in memory on top of these.
+	 */
+	public static final int DB_CACHE_SIZE = Integer.getInteger("wq.db.cache.size", 10000);
+
+	/**
+	 * Maximum length in bytes of a message received from a client, newline included. Longer messages are
+	 * discarded and answered with {@code INVALID_COMMAND}.
+	 */
+	public static final int MAX_FRAME_SIZE = Integer.getInteger("wq.net.maxframe", 4096);
+
+	/**
+	 * If {@code true} the connections' buffers are allocated outside of the heap, which saves a copy on every
+	 * socket read and write.
+	 */
+	public static final boolean POOL_DIRECT = Boolean.parseBoolean(System.getProperty("wq.net.pool.direct", "true"));
+
+	/**
+	 * Maximum number of free buffers the {@link BufferPool} keeps for each size class.
+	 */
+	public static final int POOL_BUFFERS = Integer.getInteger("wq.net.pool.buffers", 1024);
+
+	/**
+	 * Bytes queued for a client above which the server stops reading its messages.
+	 */
+	public static final int OUTBOUND_HIGH = Integer.getInteger("wq.net.outbound.high", 256 * 1024);
+
+	/**
+	 * Bytes queued for a client below which the server resumes reading its messages.
+	 */
+	public static final int OUTBOUND_LOW = Integer.getInteger("wq.net.outbound.low", 64 * 1024);
+
+	/**
+	 * Bytes queued for a client above which it's disconnected.
+	 */
+	public static final int OUTBOUND_MAX = Integer.getInteger("wq.net.outbound.max", 4 * 1024 * 1024);
+
+	/**
+	 * Milliseconds a client can stay above {@link #OUTBOUND_HIGH} queued bytes before it's disconnected.
+	 */
+	public static final long SLOW_CONSUMER_TIMEOUT = Long.getLong("wq.net.slowconsumer.timeout", 30L * 1000L);
+
+	/**
+	 * Number of reactors handling the connections, by default one per available processor.
+	 */
+	public static final int REACTORS = Integer.getInteger("wq.net.reactors", Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Number of threads accepting connections, each one feeding its own share of the reactors. When more than one
+	 * they bind their own socket with {@code SO_REUSEPORT} if the platform supports it.
+	 */
+	public static final int ACCEPTORS = Integer.getInteger("wq.net.acceptors", 1);
+
+	/**
+	 * Maximum number of connections waiting to be accepted by each listening socket.
+	 */
+	public static final int ACCEPT_BACKLOG = Integer.getInteger("wq.net.backlog", 1024);
+
+	/**
+	 * How the connections are handled: {@code "reactor"} multiplexes them on {@link #REACTORS} selector threads,
+	 * {@code "threads"} gives each one a thread of its own doing blocking I/O, a virtual thread where supported.
+	 */
+	public static final String TRANSPORT = System.getProperty("wq.net.transport", "reactor");
+
+	/**
+	 * Number of worker threads running the commands received by the reactors.
+	 */
+	public static final int WORKERS = Integer.getInteger("wq.workers", Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Maximum number of commands waiting for each worker, further commands are answered with {@code SERVER_BUSY}.
+	 */
+	public static final int WORKER_QUEUE = Integer.getInteger("wq.workers.queue", 1024);
+
+	/**
+	 * Milliseconds between two logs of the workers' queue depth, {@code 0} disables them.
+	 */
+	public static final long WORKER_STATS_INTERVAL = Long.getLong("wq.workers.stats.interval", 60L * 1000L);
+
+	/**
+	 * Milliseconds of silence after which a client is disconnected, {@code 0} disables the check.
+	 */
+	public static final long IDLE_TIMEOUT = Long.getLong("wq.net.idle.timeout", 120L * 1000L);
+
+	/**
+	 * Milliseconds of silence after which a client is sent a {@code PING}, {@code 0} disables pings.
+	 */
+	public static final long PING_INTERVAL = Long.getLong("wq.net.ping.interval", 30L * 1000L);
+
+	/**
+	 * Granularity in milliseconds of the idle checks, see {@link TimingWheel}.
+	 */
+	public static final long IDLE_TICK = Long.getLong("wq.net.idle.tick", 1000L);
+
+	/**
+	 * Maximum number of entries in a page of the friendlist or of the leaderboard, larger pages are cut down.
+	 */
+	public static final int PAGE_MAX = Integer.getInteger("wq.page.max", 200);
+}
@@ -1,23 +1,16 @@
 package wordquizzle.wqserver;
 
-import wordquizzle.Logger;
-import wordquizzle.wqserver.User.AlreadyFriendsException;
-
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.UncheckedIOException;
 import java.nio.file.Paths;
-import java.util.Collection;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
 
 import com.google.gson.*;
-import com.google.gson.reflect.TypeToken;
 
 
 /**
- * The {@code Database} class implements the server Database as a Singleton
+ * The {@code Database} class implements the server Database as a Singleton.
+ * Users are kept by a {@link StorageEngine} chosen at startup, see {@link Config#DB_ENGINE}.
  */
 public class Database {
 	
@@ -33,9 +26,8 @@ public class Database {
 	}
 
 	private static volatile Database database;
-	private Path dbfile;
-	private ConcurrentHashMap<String, User> backend;
-	
+	private StorageEngine engine;
+
 	/**
 	 * Return a GSon object including the custom serializer and deserializers for the User class.
 	 * @return the custom GSon object.
@@ -48,23 +40,37 @@ public class Database {
 		           .create();
 	}
 
-	private Database() {
-		backend = new ConcurrentHashMap<>();
-		try {
-			//Read the JSON file and parse it, create it if it doesn't exist.
-			dbfile = Paths.get("./database.json");
-			if (!Files.exists(dbfile)) {
-				Logger.logInfo("database.json file doesn't exist, creating one");
-				Files.createFile(dbfile);
-			}
+	/**
+	 * Return a GSon object like {@link #getDBGson()} which doesn't pretty print its output.
+	 * @return the custom GSon object.
+	 */
+	public static Gson getCompactDBGson() {
+		return new GsonBuilder()
+		           .registerTypeAdapter(User.class, new User.UserJsonSerializer())
+		           .create();
+	}
 
-			//Store all of the DB on memory, this can get extremely costly but it will do for the project's purposes.
-			Gson gson = getDBGson();
-			Collection<User> userlist = gson.fromJson(new String(Files.readAllBytes(dbfile)),
-			                                          new TypeToken<Collection<User>>(){}.getType());
-			if (userlist != null) userlist.forEach((User user) -> backend.put(user.getName(), user));
-		} catch (IOException e) {
-			e.printStackTrace();
+	private Database(StorageEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Opens the storage engine selected by {@link Config#DB_ENGINE}.
+	 * @return the storage engine.
+	 */
+	private static StorageEngine openEngine() {
+		switch (Config.DB_ENGINE) {
+			case "memory":
+				return new MemoryStorageEngine();
+			case "kv":
+				try {
+					return new LogStructuredStorageEngine(Paths.get("./database.kv"), Config.DB_DURABILITY,
+					                                      Config.DB_CACHE_SIZE);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			default:
+				throw new IllegalArgumentException("unknown storage engine " + Config.DB_ENGINE);
 		}
 	}
 
@@ -75,40 +81,78 @@ public class Database {
 	public static Database getDatabase() {
 		if (database == null) {
 			synchronized(Database.class) {
-				if (database == null) {
-					database = new Database();
-					//Now that the database has been loaded, replace the friendlist User stub with the real ones
-					database.initFriendshipRelations();
-				}
+				if (database == null) database = new Database(openEngine());
 			}
 		}
 		return database;
 	}
 
 	/**
-	 * Initialize all the friend lists.
+	 * Returns the storage engine backing the database.
+	 * @return the storage engine.
 	 */
-	private void initFriendshipRelations() {
-		for (User user : backend.values()) {
-			try {
-				user.initFriendshipRelations();
-			} catch (AlreadyFriendsException e) {e.printStackTrace();}
-		}
+	public StorageEngine getEngine() {
+		return engine;
 	}
 
 	/**
-	 * Updates (inserts if it doesn't exist) a user "row" inside the database.
-	 * @param user the user to update.
+	 * Commits every queued change.
+	 * This acts as a barrier: when it returns every change made before the call has been written out.
 	 */
-	public synchronized void updateUser(User user) {
-		try {
-			backend.put(user.getName(), user);
-			BufferedWriter writer = Files.newBufferedWriter(dbfile, StandardCharsets.UTF_8);
-			writer.write(getDBGson().toJson(backend.values()));
-			writer.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	public void flush() {
+		engine.flush();
+	}
+
+	/**
+	 * Flushes the queued changes and closes the storage engine.
+	 */
+	public void close() {
+		engine.close();
+	}
+
+	/**
+	 * Closes the database if it has been loaded.
+	 */
+	public static void shutdown() {
+		if (database != null) database.close();
+	}
+
+	/**
+	 * Inserts a newly registered user inside the database.
+	 * @param user the user to insert.
+	 * @return {@code true} iff the user has been inserted, {@code false} if the username is already taken.
+	 */
+	public boolean createUser(User user) {
+		return engine.put(user);
+	}
+
+	/**
+	 * Persists a change in the user's score.
+	 * Must be called while holding the user's score lock so that the changes are logged in the same order
+	 * they are applied.
+	 * @param user  the user whose score changed.
+	 * @param delta the points gained (or lost if negative).
+	 */
+	void scoreChanged(User user, int delta) {
+		engine.updateScore(user, delta);
+	}
+
+	/**
+	 * Persists a change in the score of several users with a single write.
+	 * Must be called while holding the score locks of all the users.
+	 * @param deltas the points each user gained (or lost if negative).
+	 */
+	void scoresChanged(Map<User, Integer> deltas) {
+		engine.updateScores(deltas);
+	}
+
+	/**
+	 * Persists {@code friend} being added to {@code user}'s friend list.
+	 * @param user   the user.
+	 * @param friend the new friend.
+	 */
+	void friendAdded(User user, User friend) {
+		engine.addEdge(user, friend);
 	}
 
 	/**
@@ -118,10 +162,30 @@ public class Database {
 	 * @throws UserNotFoundException if the user hasn't been found inside the database.
 	 */
 	public User getUser(String name) throws UserNotFoundException {
-		User user = backend.get(name);
+		User user = engine.get(name);
+		if (user != null) return user; else throw new UserNotFoundException();
+	}
+
+	/**
+	 * Returns the user with username {@code name} like {@link #getUser(String)}, pinned so that it stays the only
+	 * instance of the user until it's handed back to {@link #release(User)}.
+	 * @param name the user's username.
+	 * @return the relative User object.
+	 * @throws UserNotFoundException if the user hasn't been found inside the database.
+	 */
+	public User getPinnedUser(String name) throws UserNotFoundException {
+		User user = engine.getPinned(name);
 		if (user != null) return user; else throw new UserNotFoundException();
 	}
 
+	/**
+	 * Releases a user obtained from {@link #getPinnedUser(String)}.
+	 * @param user the user.
+	 */
+	public void release(User user) {
+		engine.unpin(user);
+	}
+
 	/**
 	 * Returns {@code true} iff the user with username {@code name} exists inside the database.
 	 * @param name the user's username.
@@ -135,4 +199,4 @@ public class Database {
 			return false;
 		}
 	}
-}
\ No newline at end of file
+}
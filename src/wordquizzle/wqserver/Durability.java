@@ -0,0 +1,42 @@
+package wordquizzle.wqserver;
+
+import wordquizzle.Logger;
+
+/**
+ * The {@code Durability} enum lists the policies the database can follow when persisting its changes.
+ */
+public enum Durability {
+	/**
+	 * Changes are handed to the operating system and never explicitly synced to disk.
+	 * Cheapest, but a crash of the machine can lose whatever the operating system didn't write back yet.
+	 */
+	NONE,
+
+	/**
+	 * Changes are synced to disk by a background timer every {@link Config#FSYNC_INTERVAL} milliseconds.
+	 * At most that many milliseconds of changes can be lost.
+	 */
+	INTERVAL,
+
+	/**
+	 * Every commit is synced to disk before returning.
+	 * Nothing that has been committed can be lost, at the price of one fsync per commit.
+	 */
+	COMMIT;
+
+	/**
+	 * Returns the policy named {@code name}, ignoring its case, or {@code fallback} if there's no such policy.
+	 * @param name     the policy's name, may be {@code null}.
+	 * @param fallback the policy to use if {@code name} isn't valid.
+	 * @return the policy.
+	 */
+	public static Durability parse(String name, Durability fallback) {
+		if (name == null) return fallback;
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			Logger.logWarn("Unknown durability policy ", name, ", using ", fallback.toString().toLowerCase());
+			return fallback;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package wordquizzle.wqserver;
 
 import wordquizzle.Logger;
+import wordquizzle.Response;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -9,17 +10,52 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
 
 
 /**
  * The {@code EventHandler} class implements the parsing and dispatching of the various messages to the appropriate
  * {@code MessageHandler}.
+ * <p>
+ * The read and write buffers are borrowed from the {@link BufferPool} when data arrives or is written and given
+ * back as soon as they are empty, so idle connections don't hold any buffer.
+ * <p>
+ * Outgoing messages are queued and sent with gathering writes. When more than {@link Config#OUTBOUND_HIGH} bytes
+ * are queued the connection stops being read until the queue drops below {@link Config#OUTBOUND_LOW}, and a
+ * client which doesn't keep up for {@link Config#SLOW_CONSUMER_TIMEOUT} milliseconds, or lets more than
+ * {@link Config#OUTBOUND_MAX} bytes pile up, is disconnected.
  */
 public class EventHandler {
+	private static final BufferPool pool = BufferPool.getPool();
+
+	//Maximum number of buffers handed to a single gathering write
+	private static final int GATHER = 16;
+
 	private ByteBuffer rbuff;
-	private ByteBuffer wbuff;
+	//Queued outgoing messages, the head may have been partially sent. Guarded by this
+	private ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+	private ByteBuffer[] gather = new ByteBuffer[GATHER];
+	private long queued = 0;
+	//Position and limit of the tail buffer before it was reserved for appending, see reserve
+	private int tailPosition = 0;
+	private int tailLimit = 0;
+	//When the queue went above the high water mark, 0 if it's below
+	private long highSince = 0;
+	private boolean readPaused = false;
+	//Set while the handler is in the reactor's flush queue
+	private boolean flushPending = false;
+	private boolean closed = false;
+	//Bytes of the partial frame inside rbuff which have already been scanned for the delimiter
+	private int scanned = 0;
+	//True while dropping the rest of an oversized frame
+	private boolean discarding = false;
+	//When the client last sent something and whether it's been pinged since, used by the reactor's thread only
+	private long lastActivity = System.currentTimeMillis();
+	private boolean pinged = false;
 	private Reactor reactor;
-	private User user;
+	private volatile User user;
 	protected SelectionKey key;
 	protected SocketChannel channel;
 	
@@ -28,24 +64,280 @@ public class EventHandler {
 	 * @param key the selection key to which the event handler is assigned.
 	 */
 	public EventHandler(SelectionKey key) {
-		this.rbuff = ByteBuffer.allocate(4096);
-		this.wbuff = ByteBuffer.allocate(4096);
 		this.key = key;
 		this.channel = (SocketChannel)key.channel();
 	}
 
+	/**
+	 * Constructs an event handler which isn't driven by a {@link Reactor}, for the other transports.
+	 */
+	protected EventHandler() {}
+
+	/**
+	 * Runs a task which may block for a while, such as starting a challenge, without blocking the reactor.
+	 * @param task the task to run.
+	 */
+	public void runBlocking(Runnable task) {
+		new Thread(task).start();
+	}
+
+	/**
+	 * Hands a complete message to the {@link WorkerPool}, the reactor only splits and sends messages.
+	 * @param frame the message, without the delimiter.
+	 */
+	protected void dispatch(String frame) {
+		if (heartbeat(frame)) return;
+		WorkerPool.getPool().execute(this, frame);
+	}
+
+	/**
+	 * Handles the heartbeat messages, which are valid in every state: {@code ping} is answered with {@code PONG}
+	 * and {@code pong}, the answer to the server's {@code PING}, is only needed to show the client is alive.
+	 * @param frame the message, without the delimiter.
+	 * @return {@code true} iff the message was a heartbeat.
+	 */
+	protected boolean heartbeat(String frame) {
+		switch (frame) {
+			case "ping":
+				write(Response.PONG);
+				return true;
+			case "pong":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Handles a complete message with the {@code MessageHandler} matching the user's state.
+	 * @param frame the message, without the delimiter.
+	 */
+	protected void compute(String frame) {
+		MessageHandler.getHandler().startCompute(frame, this);
+	}
+
 	/**
 	 * Write data to the buffer.
 	 * @param data the data to write.
 	 */
 	public synchronized void write(byte[] data) {
+		ByteBuffer tail = reserve(data.length);
+		if (tail == null) return;
+		tail.put(data);
+		commit(tail);
+	}
+
+	/**
+	 * Encodes a response straight into the queue, see {@link Response#encode}.
+	 * @param response the response.
+	 * @param s0 the first string argument.
+	 * @param s1 the second string argument.
+	 * @param d0 the first integer argument.
+	 * @param d1 the second integer argument.
+	 * @param d2 the third integer argument.
+	 */
+	protected synchronized void write(Response response, String s0, String s1, int d0, int d1, int d2) {
+		int length = response.encodedLength(s0, s1, d0, d1, d2);
+		ByteBuffer tail = reserve(length);
+		if (tail == null) return;
+		response.encode(tail, s0, s1, d0, d1, d2);
+		commit(tail);
+	}
+
+	/**
+	 * Returns the buffer {@code length} bytes have to be appended to, ready for writing, which is the last queued
+	 * buffer if there's room since its position may be in the middle of a partial send, a new one otherwise.
+	 * The caller must hold the lock and call {@link #commit} once done, it may append more than {@code length}
+	 * bytes if the buffer has room for them.
+	 * @param length the number of bytes about to be queued.
+	 * @return the buffer or {@code null} if the connection is closed or has just been found to be a slow consumer.
+	 */
+	ByteBuffer reserve(int length) {
+		if (!admit(length)) return null;
+
+		ByteBuffer tail = outbound.peekLast();
+		if (tail == null || tail.capacity() - tail.limit() < length) {
+			tail = pool.acquire(length);
+			tail.limit(0);
+			outbound.add(tail);
+		}
+		tailPosition = tail.position();
+		tailLimit = tail.limit();
+		tail.position(tailLimit).limit(tail.capacity());
+		return tail;
+	}
+
+	/**
+	 * Queues the bytes appended to the buffer returned by {@link #reserve}, the caller must hold the lock.
+	 * @param tail the buffer.
+	 */
+	void commit(ByteBuffer tail) {
+		int length = tail.position() - tailLimit;
+		tail.limit(tail.position()).position(tailPosition);
+		queued(length);
+	}
+
+	/**
+	 * Queues {@code chunks} as a single message, no other message gets in between them. The chunks are filled by
+	 * the caller without holding the lock, so that the reactor never waits for a large response to be built, and
+	 * they belong to the handler afterwards.
+	 * @param chunks the chunks, taken from the {@link BufferPool} and in write mode.
+	 */
+	synchronized void enqueue(List<ByteBuffer> chunks) {
+		long length = 0;
+		for (ByteBuffer chunk : chunks) length += chunk.position();
+		if (!admit(length)) {
+			for (ByteBuffer chunk : chunks) pool.release(chunk);
+			return;
+		}
+		for (ByteBuffer chunk : chunks) {
+			chunk.flip();
+			outbound.add(chunk);
+		}
+		queued(length);
+	}
+
+	/**
+	 * Returns {@code true} iff {@code length} more bytes can be queued, closing the connection if it's been found
+	 * to be a slow consumer. The caller must hold the lock.
+	 */
+	private boolean admit(long length) {
+		if (closed) return false;
+		if (!slowConsumer(length)) return true;
+		Logger.logWarn(channel.socket().getRemoteSocketAddress(), " is not reading its messages, disconnecting it");
+		closed = true;
+		reactor.requestClose(this);
+		return false;
+	}
+
+	/**
+	 * Accounts for {@code length} bytes which have just been queued and has the reactor send them, the caller must
+	 * hold the lock.
+	 */
+	private void queued(long length) {
+		queued += length;
+		if (queued > Config.OUTBOUND_HIGH && highSince == 0) highSince = System.currentTimeMillis();
+
+		//Have the reactor send the queue at the end of its loop
+		if (!flushPending) {
+			flushPending = true;
+			reactor.flush(this);
+		}
+	}
+
+	/**
+	 * Writes a response without arguments.
+	 * @param response the response.
+	 */
+	public void write(Response response) {
+		write(response, null, null, 0, 0, 0);
+	}
+
+	/**
+	 * Writes a response with a string argument.
+	 * @param response the response.
+	 * @param s the argument.
+	 */
+	public void write(Response response, String s) {
+		write(response, s, null, 0, 0, 0);
+	}
+
+	/**
+	 * Writes a response with two string arguments.
+	 * @param response the response.
+	 * @param s0 the first argument.
+	 * @param s1 the second argument.
+	 */
+	public void write(Response response, String s0, String s1) {
+		write(response, s0, s1, 0, 0, 0);
+	}
+
+	/**
+	 * Writes a response with an integer argument.
+	 * @param response the response.
+	 * @param d the argument.
+	 */
+	public void write(Response response, int d) {
+		write(response, null, null, d, 0, 0);
+	}
+
+	/**
+	 * Writes a response with two integer arguments.
+	 * @param response the response.
+	 * @param d0 the first argument.
+	 * @param d1 the second argument.
+	 */
+	public void write(Response response, int d0, int d1) {
+		write(response, null, null, d0, d1, 0);
+	}
+
+	/**
+	 * Writes a response with three integer arguments.
+	 * @param response the response.
+	 * @param d0 the first argument.
+	 * @param d1 the second argument.
+	 * @param d2 the third argument.
+	 */
+	public void write(Response response, int d0, int d1, int d2) {
+		write(response, null, null, d0, d1, d2);
+	}
+
+	/**
+	 * Writes a response with two integer arguments followed by a string one.
+	 * @param response the response.
+	 * @param d0 the first argument.
+	 * @param d1 the second argument.
+	 * @param s  the third argument.
+	 */
+	public void write(Response response, int d0, int d1, String s) {
+		write(response, s, null, d0, d1, 0);
+	}
+
+	/**
+	 * Writes a response with a string argument followed by two integer ones.
+	 * @param response the response.
+	 * @param s  the first argument.
+	 * @param d0 the second argument.
+	 * @param d1 the third argument.
+	 */
+	public void write(Response response, String s, int d0, int d1) {
+		write(response, s, null, d0, d1, 0);
+	}
+
+	/**
+	 * Returns {@code true} iff queueing {@code length} more bytes would exceed {@link Config#OUTBOUND_MAX} or the
+	 * queue has been above the high water mark for longer than {@link Config#SLOW_CONSUMER_TIMEOUT}.
+	 * @param length the number of bytes about to be queued.
+	 * @return {@code true} iff the client should be disconnected.
+	 */
+	private boolean slowConsumer(long length) {
+		if (queued + length > Config.OUTBOUND_MAX) return true;
+		return highSince != 0 && System.currentTimeMillis() - highSince > Config.SLOW_CONSUMER_TIMEOUT;
+	}
+
+	/**
+	 * Returns {@code true} iff the queue has been above the high water mark for longer than
+	 * {@link Config#SLOW_CONSUMER_TIMEOUT}, called periodically by the reactor while reads are paused.
+	 * @return {@code true} iff the client should be disconnected.
+	 */
+	synchronized boolean isSlowConsumer() {
+		if (closed || !slowConsumer(0)) return false;
+		Logger.logWarn(channel.socket().getRemoteSocketAddress(), " is not reading its messages, disconnecting it");
+		return true;
+	}
+
+	/**
+	 * Updates the interest set: the channel is watched for writes while there's something queued and for reads
+	 * unless they've been paused because too much is queued. Only called by the reactor's thread.
+	 */
+	private void updateInterest() {
+		boolean paused = readPaused;
+		if (queued > Config.OUTBOUND_HIGH) readPaused = true;
+		else if (queued < Config.OUTBOUND_LOW) readPaused = false;
+		if (readPaused != paused) reactor.setReadPaused(this, readPaused);
 		try {
-			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-			wbuff.put(data);
+			key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (queued > 0 ? SelectionKey.OP_WRITE : 0));
 		} catch (CancelledKeyException e) {/*silently fail*/}
-
-		//Wake up the selector
-		reactor.wakeup();
 	}
 	
 	/**
@@ -53,7 +345,7 @@ public class EventHandler {
 	 * @param data the data to write.
 	 */
 	public void write(String data) {
-		write(new String(data + "\n").getBytes(StandardCharsets.UTF_8));
+		write((data + "\n").getBytes(StandardCharsets.UTF_8));
 	}
 
 	/**
@@ -94,15 +386,107 @@ public class EventHandler {
 	}
 
 	/**
-	 * Empties the write buffer inside the socket.
+	 * Sends as much of the outbound queue as the socket accepts, called by the reactor's thread.
 	 * @throws IOException
 	 */
-	public void send() throws IOException {
-		if (wbuff.position() > 0) {
-			wbuff.flip();
-			channel.write(wbuff);
-			wbuff.compact();
-		} else key.interestOps(SelectionKey.OP_READ);
+	public synchronized void send() throws IOException {
+		flushPending = false;
+		if (!key.isValid()) return;
+		while (!outbound.isEmpty()) {
+			int count = 0;
+			for (ByteBuffer buffer : outbound) {
+				gather[count++] = buffer;
+				if (count == GATHER) break;
+			}
+			long written = channel.write(gather, 0, count);
+			queued -= written;
+
+			//Give back the buffers which have been sent completely, the first one left may be partially sent
+			int sent = 0;
+			while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+				pool.release(outbound.pollFirst());
+				sent++;
+			}
+			Arrays.fill(gather, 0, count, null);
+
+			//The socket buffer is full, wait for the next write event
+			if (sent < count) break;
+		}
+		if (queued <= Config.OUTBOUND_HIGH) highSince = 0;
+		updateInterest();
+	}
+
+	/**
+	 * Closes the connection and gives the buffers back to the pool.
+	 */
+	public void close() {
+		if (!key.isValid()) return;
+
+		reactor.removeChannel(channel);
+		key.cancel();
+		reactor.setReadPaused(this, false);
+		synchronized(this) {
+			closed = true;
+			for (ByteBuffer buffer : outbound) pool.release(buffer);
+			outbound.clear();
+			queued = 0;
+		}
+		pool.release(rbuff);
+		rbuff = null;
+
+		//If the user was logged in log him out, only after the handler is marked as closed: a login still being
+		//handled by a worker either is seen here or sees the handler closed and logs the user out itself
+		User user = this.user;
+		if (user != null) {
+			user.logoutNoNotify();
+			Logger.logInfo("User ", user.getName(), " disconnected");
+		}
+	}
+
+	/**
+	 * Returns when the connection has to be checked for being idle, see {@link #checkIdle(long)}.
+	 * @return the time of the next check in milliseconds.
+	 */
+	long nextIdleCheck() {
+		long next = Config.IDLE_TIMEOUT > 0 ? lastActivity + Config.IDLE_TIMEOUT : Long.MAX_VALUE;
+		if (Config.PING_INTERVAL > 0 && !pinged) next = Math.min(next, lastActivity + Config.PING_INTERVAL);
+		return next;
+	}
+
+	/**
+	 * Pings the client once it's been idle for {@link Config#PING_INTERVAL} milliseconds and disconnects it once
+	 * it's been idle for {@link Config#IDLE_TIMEOUT}, called by the reactor's timing wheel.
+	 * @param now the current time in milliseconds.
+	 * @return the time of the next check in milliseconds, or {@code 0} if the connection has been closed.
+	 */
+	long checkIdle(long now) {
+		if (!key.isValid()) return 0;
+		long idle = now - lastActivity;
+		if (Config.IDLE_TIMEOUT > 0 && idle >= Config.IDLE_TIMEOUT) {
+			Logger.logInfo(channel.socket().getRemoteSocketAddress(), " idle for ", idle, "ms, disconnecting it");
+			close();
+			return 0;
+		}
+		if (Config.PING_INTERVAL > 0 && idle >= Config.PING_INTERVAL && !pinged) {
+			pinged = true;
+			write(Response.PING);
+		}
+		return nextIdleCheck();
+	}
+
+	/**
+	 * Returns {@code true} iff the connection has been closed.
+	 * @return {@code true} iff the connection has been closed.
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Limits rbuff so that it can't hold more than a whole frame.
+	 */
+	private void limitFrame() {
+		rbuff.limit(Math.min(rbuff.capacity(), Config.MAX_FRAME_SIZE));
 	}
 
 	/**
@@ -110,38 +494,77 @@ public class EventHandler {
 	 * @throws IOException
 	 */
 	public void handle() throws IOException {
+		if (rbuff == null) {
+			rbuff = pool.acquire(BufferPool.MIN_SIZE);
+			limitFrame();
+		}
+
 		//shutdown the connection
 		if(channel.read(rbuff) < 0) {
-			
-			//If the user was logged in log him out
-			if (this.user != null) {
-				this.user.logoutNoNotify();
-				Logger.logInfo("User ", this.user.getName(), " disconnected");
-			}
-
 			Logger.logInfo(channel.getRemoteAddress(), " connection shutdown");
-			reactor.removeChannel(channel);
-			channel.close();
-			key.cancel();
+			close();
 			return;
 		}
-		//check if the received data ends with '\n' (0x0A)
-		else if (rbuff.position() > 0 && rbuff.get(rbuff.position() - 1) == (byte)0x0A) {
-			rbuff.flip();
-			byte[] data = new byte[rbuff.limit()];
-			rbuff.get(data, 0, rbuff.limit());
-			rbuff.clear();
-			String str = new String(data);
-			
-			//parse (split) the segment's content
-			while (!str.isEmpty()) {
-				int sep = str.indexOf("\n");
-
-				MessageHandler msgHandler = MessageHandler.getHandler(this.user);
-				if (sep > 0) msgHandler.startCompute(str.substring(0, sep), this);
-				
-				str = str.substring(sep + 1, str.length());
+		lastActivity = System.currentTimeMillis();
+		pinged = false;
+
+		//Scan only the bytes which have just been read, rbuff holds [0, scanned) already scanned bytes of the
+		//partial frame followed by the new ones
+		int end = rbuff.position();
+		int frameStart = 0;
+		for (int i = scanned; i < end; i++) {
+			if (rbuff.get(i) != (byte)0x0A) continue;
+			if (discarding) {
+				//The tail of an oversized frame, drop it
+				discarding = false;
+			} else if (i > frameStart) {
+				dispatch(decode(frameStart, i));
+			}
+			frameStart = i + 1;
+		}
+
+		//Move the partial frame (if any) to the beginning of the buffer
+		if (frameStart > 0) {
+			rbuff.limit(end).position(frameStart);
+			rbuff.compact();
+			limitFrame();
+		}
+		scanned = rbuff.position();
+
+		//The buffer is full and there's no newline: move the partial frame to a bigger buffer
+		if (!rbuff.hasRemaining() && rbuff.capacity() < Config.MAX_FRAME_SIZE) {
+			rbuff = pool.grow(rbuff, rbuff.capacity() * 2);
+			limitFrame();
+		}
+
+		//The buffer can't grow anymore: the frame is too long
+		if (!rbuff.hasRemaining()) {
+			if (!discarding) {
+				Logger.logWarn(channel.getRemoteAddress(), " sent a message longer than ", Config.MAX_FRAME_SIZE,
+				               " bytes, discarding it");
+				write(Response.INVALID_COMMAND);
 			}
-		};
+			discarding = true;
+			rbuff.clear();
+			scanned = 0;
+		}
+
+		//No partial frame left, give the buffer back
+		if (rbuff.position() == 0) {
+			pool.release(rbuff);
+			rbuff = null;
+		}
+	}
+
+	/**
+	 * Decodes the frame stored in rbuff between {@code from} (inclusive) and {@code to} (exclusive).
+	 * @param from the index of the frame's first byte.
+	 * @param to   the index of the frame's delimiter.
+	 * @return the decoded frame.
+	 */
+	private String decode(int from, int to) {
+		ByteBuffer frame = rbuff.duplicate();
+		frame.limit(to).position(from);
+		return StandardCharsets.UTF_8.decode(frame).toString();
 	}
 }
@@ -0,0 +1,175 @@
+package wordquizzle.wqserver;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The {@code FriendGraph} class implements the friendship relations between the users as a Singleton.
+ * <p>
+ * Every nickname is given a dense integer id the first time it's seen and the friend list of each user is a
+ * sorted {@code int[]} of ids, so checking whether two users are friends is a binary search and a friend list
+ * can be iterated without allocating anything. Friend lists are copied on write: readers never lock and always
+ * see a complete list, possibly missing a friend being added concurrently.
+ */
+public class FriendGraph {
+
+	private static final int[] EMPTY = new int[0];
+	private static final FriendGraph graph = new FriendGraph();
+
+	private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+	private volatile AtomicReferenceArray<String> names = new AtomicReferenceArray<>(1024);
+	private volatile AtomicReferenceArray<int[]> friends = new AtomicReferenceArray<>(1024);
+	private volatile int size = 0;
+	//Friend lists are updated in read mode, the arrays are replaced by bigger ones in write mode
+	private ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+
+	private FriendGraph() {}
+
+	/**
+	 * Return the friend graph singleton
+	 * @return friend graph singleton
+	 */
+	public static FriendGraph getGraph() {
+		return graph;
+	}
+
+	/**
+	 * Returns the id of user {@code name}, assigning a new one if the nickname has never been seen.
+	 * @param name the user's nickname.
+	 * @return the user's id.
+	 */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if (id != null) return id;
+		synchronized(this) {
+			id = ids.get(name);
+			if (id != null) return id;
+			if (size == names.length()) grow();
+			names.set(size, name);
+			friends.set(size, EMPTY);
+			//Publish the id only once the slots have been filled
+			ids.put(name, size);
+			return size++;
+		}
+	}
+
+	private void grow() {
+		resizeLock.writeLock().lock();
+		try {
+			AtomicReferenceArray<String> newNames = new AtomicReferenceArray<>(names.length() * 2);
+			AtomicReferenceArray<int[]> newFriends = new AtomicReferenceArray<>(names.length() * 2);
+			for (int i = 0; i < size; i++) {
+				newNames.set(i, names.get(i));
+				newFriends.set(i, friends.get(i));
+			}
+			names = newNames;
+			friends = newFriends;
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the id of user {@code name}.
+	 * @param name the user's nickname.
+	 * @return the user's id, or {@code -1} if the nickname has never been seen.
+	 */
+	public int getId(String name) {
+		Integer id = ids.get(name);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * Returns the nickname of user {@code id}.
+	 * @param id the user's id.
+	 * @return the user's nickname.
+	 */
+	public String getName(int id) {
+		return names.get(id);
+	}
+
+	/**
+	 * Returns the number of ids assigned so far, every id is lower than this.
+	 * @return the number of ids assigned so far.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the ids of the friends of user {@code id}, sorted in ascending order.
+	 * The returned array is shared and must not be modified.
+	 * @param id the user's id.
+	 * @return the friends' ids.
+	 */
+	public int[] getFriends(int id) {
+		return friends.get(id);
+	}
+
+	/**
+	 * Returns {@code true} iff {@code friend} is in the friend list of user {@code id}.
+	 * @param id     the user's id.
+	 * @param friend the friend's id.
+	 * @return {@code true} iff {@code friend} is in the friend list of user {@code id}.
+	 */
+	public boolean isFriend(int id, int friend) {
+		return Arrays.binarySearch(friends.get(id), friend) >= 0;
+	}
+
+	/**
+	 * Adds {@code friend} to the friend list of user {@code id}.
+	 * @param id     the user's id.
+	 * @param friend the friend's id.
+	 * @return {@code true} iff the friend has been added, {@code false} if it already was in the friend list.
+	 */
+	public boolean addFriend(int id, int friend) {
+		resizeLock.readLock().lock();
+		try {
+			while (true) {
+				int[] current = friends.get(id);
+				int position = Arrays.binarySearch(current, friend);
+				if (position >= 0) return false;
+				position = -position - 1;
+				int[] updated = new int[current.length + 1];
+				System.arraycopy(current, 0, updated, 0, position);
+				updated[position] = friend;
+				System.arraycopy(current, position, updated, position + 1, current.length - position);
+				if (friends.compareAndSet(id, current, updated)) return true;
+			}
+		} finally {
+			resizeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds all of {@code newFriends} to the friend list of user {@code id} with a single copy, used while loading.
+	 * Friend lists of different users can be filled in parallel.
+	 * @param id         the user's id.
+	 * @param newFriends the friends' ids, in any order.
+	 */
+	public void addFriends(int id, int[] newFriends) {
+		int[] sorted = newFriends.clone();
+		Arrays.sort(sorted);
+		resizeLock.readLock().lock();
+		try {
+			while (true) {
+				int[] current = friends.get(id);
+				//Merge the two sorted lists dropping the duplicates
+				int[] merged = new int[current.length + sorted.length];
+				int i = 0, j = 0, n = 0;
+				while (i < current.length || j < sorted.length) {
+					int next;
+					if (j == sorted.length || (i < current.length && current[i] <= sorted[j])) next = current[i++];
+					else next = sorted[j++];
+					if (n == 0 || merged[n - 1] != next) merged[n++] = next;
+				}
+				if (n < merged.length) merged = Arrays.copyOf(merged, n);
+				if (friends.compareAndSet(id, current, merged)) return;
+			}
+		} finally {
+			resizeLock.readLock().unlock();
+		}
+	}
+}
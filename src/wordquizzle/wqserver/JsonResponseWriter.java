@@ -0,0 +1,243 @@
+package wordquizzle.wqserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import wordquizzle.Response;
+
+/**
+ * The {@code JsonResponseWriter} class streams a response whose argument is a JSON value, such as
+ * {@code FRIENDLIST} and {@code LEADERBOARD}, straight into a connection's outgoing buffers.
+ * <p>
+ * The JSON is encoded as UTF-8 while it's written, with the same escaping Gson applies by default, into chunks of
+ * {@link #CHUNK} bytes taken from the {@link BufferPool} so a large value never needs a buffer of its own size.
+ * The chunks are filled without holding the connection's lock and handed to it all at once by {@link #end}, so
+ * that no other message gets in between them while the reactor is never kept waiting for the value to be built.
+ * Writers are reused, one per thread, see {@link #getWriter()}.
+ */
+class JsonResponseWriter {
+
+	//Size of the chunks requested to the connection
+	static final int CHUNK = 4096;
+	//The longest a character can get once escaped
+	private static final int MAX_CHAR = 6;
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private static final ThreadLocal<JsonResponseWriter> writers = ThreadLocal.withInitial(JsonResponseWriter::new);
+	private static final BufferPool pool = BufferPool.getPool();
+
+	private EventHandler evh;
+	private Response response;
+	//The chunks filled so far, the last one is being written
+	private final ArrayList<ByteBuffer> chunks = new ArrayList<>();
+	private ByteBuffer buffer;
+	//Whether the next value is the first one of the current array or object
+	private boolean first;
+
+	private JsonResponseWriter() {}
+
+	/**
+	 * Returns the current thread's writer.
+	 * @return the current thread's writer.
+	 */
+	static JsonResponseWriter getWriter() {
+		return writers.get();
+	}
+
+	/**
+	 * Starts writing {@code response} to {@code evh}, up to the JSON value.
+	 * @param evh      the connection.
+	 * @param response the response, its code must have a single slot.
+	 * @return this writer.
+	 */
+	JsonResponseWriter begin(EventHandler evh, Response response) {
+		//Give back the chunks of a response which was never ended
+		for (ByteBuffer chunk : chunks) pool.release(chunk);
+		chunks.clear();
+		this.evh = evh;
+		this.response = response;
+		this.first = true;
+		this.buffer = null;
+		ensure(response.headLength());
+		response.encodeHead(buffer);
+		return this;
+	}
+
+	/**
+	 * Writes the rest of the response and hands all of the chunks to the connection.
+	 */
+	void end() {
+		ensure(response.tailLength());
+		response.encodeTail(buffer);
+		evh.enqueue(chunks);
+		chunks.clear();
+		evh = null;
+		response = null;
+		buffer = null;
+	}
+
+	/**
+	 * Makes sure there's room for {@code length} more bytes, moving on to a new chunk if needed.
+	 */
+	private void ensure(int length) {
+		if (buffer != null && buffer.remaining() >= length) return;
+		buffer = pool.acquire(Math.max(CHUNK, length));
+		chunks.add(buffer);
+	}
+
+	/**
+	 * Writes a single byte.
+	 */
+	private void put(byte b) {
+		ensure(1);
+		buffer.put(b);
+	}
+
+	/**
+	 * Writes the comma separating a value from the previous one.
+	 */
+	private void separate() {
+		if (!first) put((byte)',');
+		first = false;
+	}
+
+	JsonResponseWriter beginArray() {
+		separate();
+		put((byte)'[');
+		first = true;
+		return this;
+	}
+
+	JsonResponseWriter endArray() {
+		put((byte)']');
+		first = false;
+		return this;
+	}
+
+	JsonResponseWriter beginObject() {
+		separate();
+		put((byte)'{');
+		first = true;
+		return this;
+	}
+
+	JsonResponseWriter endObject() {
+		put((byte)'}');
+		first = false;
+		return this;
+	}
+
+	/**
+	 * Writes a string value, inside an array.
+	 * @param value the value.
+	 * @return this writer.
+	 */
+	JsonResponseWriter value(String value) {
+		separate();
+		string(value);
+		return this;
+	}
+
+	/**
+	 * Writes an integer value, inside an array.
+	 * @param value the value.
+	 * @return this writer.
+	 */
+	JsonResponseWriter value(long value) {
+		separate();
+		//A sign and nineteen digits at most
+		ensure(20);
+		if (value < 0) buffer.put((byte)'-');
+		else value = -value;
+		//Work on the negative value so that Long.MIN_VALUE fits
+		long divisor = 1;
+		while (value / divisor <= -10) divisor *= 10;
+		for (; divisor > 0; divisor /= 10) buffer.put((byte)('0' - value / divisor % 10));
+		return this;
+	}
+
+	/**
+	 * Writes a member's name, inside an object, its value must follow.
+	 * @param name the member's name.
+	 * @return this writer.
+	 */
+	JsonResponseWriter name(String name) {
+		separate();
+		string(name);
+		put((byte)':');
+		//The value goes right after the colon
+		first = true;
+		return this;
+	}
+
+	/**
+	 * Writes a member with an integer value, inside an object.
+	 * @param name  the member's name.
+	 * @param value the value.
+	 * @return this writer.
+	 */
+	JsonResponseWriter member(String name, long value) {
+		return name(name).value(value);
+	}
+
+	/**
+	 * Writes a quoted and escaped string.
+	 */
+	private void string(String str) {
+		put((byte)'"');
+		for (int i = 0; i < str.length(); i++) {
+			ensure(MAX_CHAR);
+			char c = str.charAt(i);
+			switch (c) {
+				case '"':
+				case '\\':
+					buffer.put((byte)'\\').put((byte)c);
+					continue;
+				case '\t':
+					buffer.put((byte)'\\').put((byte)'t');
+					continue;
+				case '\b':
+					buffer.put((byte)'\\').put((byte)'b');
+					continue;
+				case '\n':
+					buffer.put((byte)'\\').put((byte)'n');
+					continue;
+				case '\r':
+					buffer.put((byte)'\\').put((byte)'r');
+					continue;
+				case '\f':
+					buffer.put((byte)'\\').put((byte)'f');
+					continue;
+				//Escaped by Gson to be safe inside HTML and JavaScript
+				case '<':
+				case '>':
+				case '&':
+				case '=':
+				case '\'':
+				case '\u2028':
+				case '\u2029':
+					unicode(c);
+					continue;
+			}
+			if (c < 0x20) unicode(c);
+			else if (c < 0x80) buffer.put((byte)c);
+			else if (c < 0x800) buffer.put((byte)(0xC0 | c >> 6)).put((byte)(0x80 | c & 0x3F));
+			else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				buffer.put((byte)(0xF0 | cp >> 18)).put((byte)(0x80 | cp >> 12 & 0x3F))
+				      .put((byte)(0x80 | cp >> 6 & 0x3F)).put((byte)(0x80 | cp & 0x3F));
+			}
+			else if (Character.isSurrogate(c)) buffer.put((byte)'?');
+			else buffer.put((byte)(0xE0 | c >> 12)).put((byte)(0x80 | c >> 6 & 0x3F)).put((byte)(0x80 | c & 0x3F));
+		}
+		put((byte)'"');
+	}
+
+	/**
+	 * Writes {@code c} as a unicode escape.
+	 */
+	private void unicode(char c) {
+		buffer.put((byte)'\\').put((byte)'u')
+		      .put(HEX[c >> 12 & 0xF]).put(HEX[c >> 8 & 0xF]).put(HEX[c >> 4 & 0xF]).put(HEX[c & 0xF]);
+	}
+}
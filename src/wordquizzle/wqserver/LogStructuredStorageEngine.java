@@ -0,0 +1,529 @@
+package wordquizzle.wqserver;
+
+import wordquizzle.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * The {@code LogStructuredStorageEngine} class implements an embedded, log-structured key-value store of users.
+ * <p>
+ * Every change to a user appends the user's whole record to the data file, framed as
+ * {@code [length][crc32][name, password, score, friends]}, and only the key directory (the position of the
+ * latest record of every user) and the {@link FriendGraph} are kept in memory: users are read from the data file
+ * when they're requested and kept in a least recently used cache of {@link Config#DB_CACHE_SIZE} users, except for
+ * the pinned ones (online or playing) which stay loaded until they're unpinned. Superseded records are dropped by
+ * {@link #checkpoint()}, which rewrites the live records into a new data file once the garbage outweighs them.
+ */
+public class LogStructuredStorageEngine implements StorageEngine {
+
+	private static final int HEADER_SIZE = 8;
+	//Minimum amount of superseded records for a compaction to be worth it
+	private static final long MIN_GARBAGE = 1024L * 1024L;
+
+	/**
+	 * Position and length (header included) of a record inside the data file.
+	 */
+	private static class Location {
+		final long offset;
+		final int length;
+
+		Location(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private Path file;
+	private FileChannel channel;
+	private long size = 0;
+	private long liveBytes = 0;
+	private ConcurrentHashMap<String, Location> keydir = new ConcurrentHashMap<>();
+	//Loaded users: pinned ones are looked up without locking, the others are kept in access order
+	private ConcurrentHashMap<String, User> pinned = new ConcurrentHashMap<>();
+	private LinkedHashMap<String, User> cache = new LinkedHashMap<>(16, 0.75f, true);
+	//How many times each pinned user has been pinned, guarded by the cache's lock
+	private HashMap<String, Integer> pins = new HashMap<>();
+	private int cacheSize;
+	//Held in write mode only while the data file is being replaced by a compacted one
+	private ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+	private PeriodicTask checkpointer;
+
+	//Durability stuff
+	private Durability durability;
+	private CommitStats stats = new CommitStats();
+	private Timer syncTimer = null;
+	private boolean synced = true;
+
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+	private DataOutputStream out = new DataOutputStream(bytes);
+	private CRC32 crc = new CRC32();
+
+	/**
+	 * Opens the store kept in {@code file}, creating it if it doesn't exist.
+	 * A new store is filled with the users of the snapshot kept by {@link MemoryStorageEngine}, if any.
+	 * @param file       the data file.
+	 * @param durability when the appended records are synced to disk.
+	 * @param cacheSize  maximum number of unpinned users kept in memory.
+	 * @throws IOException if the data file can't be opened or read.
+	 */
+	public LogStructuredStorageEngine(Path file, Durability durability, int cacheSize) throws IOException {
+		this.file = file;
+		this.durability = durability;
+		this.cacheSize = cacheSize;
+		Files.deleteIfExists(getCompactionFile());
+		boolean created = !Files.exists(file);
+		long start = System.currentTimeMillis();
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+		                           StandardOpenOption.WRITE);
+		scan();
+		Logger.logInfo("Loaded the key directory of ", keydir.size(), " users from ", file, " in ",
+		               System.currentTimeMillis() - start, "ms");
+		if (created && (Files.exists(Paths.get("./database.db")) || Files.exists(Paths.get("./database.json")))) {
+			//Import the users of the in-memory engine, reading its files without opening it
+			MemoryStorageEngine.readUsers().values().forEach(this::write);
+			sync();
+			Logger.logInfo("Imported ", keydir.size(), " users into ", file);
+		}
+
+		if (durability == Durability.INTERVAL) {
+			syncTimer = new Timer("fsync", true);
+			syncTimer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					sync();
+				}
+			}, Config.FSYNC_INTERVAL, Config.FSYNC_INTERVAL);
+		}
+		checkpointer = new PeriodicTask("checkpointer", Config.CHECKPOINT_INTERVAL, this::checkpoint);
+		checkpointer.start();
+		Logger.logInfo("Database stored in ", file, " with ", durability.toString().toLowerCase(), " durability");
+	}
+
+	private Path getCompactionFile() {
+		return file.resolveSibling(file.getFileName() + ".compact");
+	}
+
+	/**
+	 * Builds the key directory and fills the friend graph by reading the whole data file.
+	 * If the tail of the file is incomplete or corrupted (e.g. the server crashed while writing it)
+	 * the tail is discarded and the file is truncated to the last valid record.
+	 * @throws IOException if the file can't be read.
+	 */
+	private void scan() throws IOException {
+		long length = channel.size();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+		byte[] payload = new byte[256];
+		//Friend lists only grow, so the latest record of each user holds all of its friends
+		Map<Integer, int[]> latestFriends = new HashMap<>();
+		FriendGraph graph = FriendGraph.getGraph();
+		try {
+			while (length - size >= HEADER_SIZE) {
+				int recordLength = in.readInt();
+				int checksum = in.readInt();
+				if (recordLength <= 0 || recordLength > length - size - HEADER_SIZE) break;
+				if (recordLength > payload.length) payload = new byte[recordLength];
+				in.readFully(payload, 0, recordLength);
+				crc.reset();
+				crc.update(payload, 0, recordLength);
+				if ((int)crc.getValue() != checksum) break;
+
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 0, recordLength));
+				String name = record.readUTF();
+				record.readUTF();
+				record.readInt();
+				int[] friends = new int[record.readInt()];
+				for (int i = 0; i < friends.length; i++) friends[i] = graph.intern(record.readUTF());
+				latestFriends.put(graph.intern(name), friends);
+				Location old = keydir.put(name, new Location(size, HEADER_SIZE + recordLength));
+				liveBytes += HEADER_SIZE + recordLength - (old == null ? 0 : old.length);
+				size += HEADER_SIZE + recordLength;
+			}
+		} catch (EOFException e) {/*corrupted record, stop here*/}
+		latestFriends.forEach(graph::addFriends);
+
+		if (size < length) {
+			Logger.logWarn("Discarding ", length - size, " bytes of incomplete records from ", file);
+			channel.truncate(size);
+		}
+	}
+
+	/**
+	 * Reads the record at {@code location}, header included.
+	 * Must be called while holding the file lock.
+	 * @param location the record's location.
+	 * @return the record.
+	 * @throws IOException if the record can't be read.
+	 */
+	private ByteBuffer read(Location location) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(location.length);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, location.offset + buffer.position()) < 0) throw new EOFException();
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads the user with nickname {@code name} from the data file.
+	 * The returned user is a new instance, its friends are already part of the friend graph.
+	 * @param name the user's nickname.
+	 * @return the user or {@code null} if it doesn't exist.
+	 */
+	private User load(String name) {
+		fileLock.readLock().lock();
+		try {
+			Location location = keydir.get(name);
+			if (location == null) return null;
+			ByteBuffer record = read(location);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array(), HEADER_SIZE,
+			                                                                  location.length - HEADER_SIZE));
+			String nickname = in.readUTF();
+			String password = in.readUTF();
+			return new User(nickname, password, in.readInt());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			fileLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends the current state of {@code user} to the data file.
+	 * @param user the user.
+	 */
+	private void write(User user) {
+		write(Collections.singletonList(user));
+	}
+
+	/**
+	 * Appends the current state of {@code users} to the data file with a single write.
+	 * The users are read while holding the store's lock, so the last record appended for a user always reflects
+	 * every change made to it before its append started.
+	 * @param users the users.
+	 */
+	private synchronized void write(Collection<User> users) {
+		long start = System.nanoTime();
+		try {
+			bytes.reset();
+			int[] offsets = new int[users.size() + 1];
+			int n = 0;
+			for (User user : users) {
+				offsets[n++] = bytes.size();
+				out.writeInt(0);
+				out.writeInt(0);
+				out.writeUTF(user.getName());
+				out.writeUTF(user.getPassword());
+				out.writeInt(user.getScore());
+				List<String> friends = user.getFriendNames();
+				out.writeInt(friends.size());
+				for (String friend : friends) out.writeUTF(friend);
+			}
+			out.flush();
+			offsets[n] = bytes.size();
+
+			//Fill in the headers now that the payload lengths are known
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			for (int i = 0; i < n; i++) {
+				int length = offsets[i + 1] - offsets[i] - HEADER_SIZE;
+				crc.reset();
+				crc.update(buffer.array(), offsets[i] + HEADER_SIZE, length);
+				buffer.putInt(offsets[i], length);
+				buffer.putInt(offsets[i] + 4, (int)crc.getValue());
+			}
+			long offset = size;
+			while (buffer.hasRemaining()) size += channel.write(buffer, size);
+
+			n = 0;
+			for (User user : users) {
+				int length = offsets[n + 1] - offsets[n];
+				Location old = keydir.put(user.getName(), new Location(offset + offsets[n], length));
+				liveBytes += length - (old == null ? 0 : old.length);
+				n++;
+			}
+			synced = false;
+			if (durability == Durability.COMMIT) sync();
+			if (size - liveBytes > Config.CHECKPOINT_LOG_SIZE && checkpointer != null) checkpointer.request();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		stats.commit(users.size(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Syncs the data file to disk if anything has been appended since the last sync.
+	 */
+	private synchronized void sync() {
+		if (synced) return;
+		try {
+			long start = System.nanoTime();
+			channel.force(false);
+			synced = true;
+			stats.sync(System.nanoTime() - start);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Rewrites the live records into a new data file if the superseded ones take up more space than them.
+	 * The live records are copied without holding the store's lock, then the records appended meanwhile are
+	 * copied and the data files are swapped while holding it.
+	 */
+	@Override
+	public void checkpoint() {
+		long end;
+		synchronized(this) {
+			if (size - liveBytes < Math.max(liveBytes, MIN_GARBAGE)) return;
+			end = size;
+		}
+		long start = System.currentTimeMillis();
+		Path tmpfile = getCompactionFile();
+		FileChannel target = null;
+		try {
+			target = FileChannel.open(tmpfile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+			                          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			Map<String, Location> moved = new HashMap<>(keydir.size() * 2);
+			long position = 0;
+			for (Map.Entry<String, Location> entry : keydir.entrySet()) {
+				Location location = entry.getValue();
+				//Records appended from now on are copied along with the tail of the file
+				if (location.offset >= end) continue;
+				ByteBuffer record;
+				fileLock.readLock().lock();
+				try {
+					record = read(location);
+				} finally {
+					fileLock.readLock().unlock();
+				}
+				moved.put(entry.getKey(), new Location(position, location.length));
+				while (record.hasRemaining()) position += target.write(record, position);
+			}
+
+			synchronized(this) {
+				long tail = position;
+				ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+				for (long offset = end; offset < size; ) {
+					buffer.clear();
+					if (size - offset < buffer.capacity()) buffer.limit((int)(size - offset));
+					int n = channel.read(buffer, offset);
+					if (n < 0) throw new EOFException();
+					buffer.flip();
+					while (buffer.hasRemaining()) position += target.write(buffer, position);
+					offset += n;
+				}
+				for (Map.Entry<String, Location> entry : keydir.entrySet()) {
+					Location location = entry.getValue();
+					if (location.offset >= end)
+						moved.put(entry.getKey(), new Location(tail + location.offset - end, location.length));
+				}
+				target.force(true);
+
+				fileLock.writeLock().lock();
+				try {
+					Files.move(tmpfile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					ChangeLog.syncDirectory(file);
+					FileChannel old = channel;
+					channel = target;
+					target = null;
+					old.close();
+					keydir.putAll(moved);
+					Logger.logInfo("Compacted ", file, " from ", size, " to ", position, " bytes in ",
+					               System.currentTimeMillis() - start, "ms");
+					size = position;
+					liveBytes = position;
+					synced = true;
+				} finally {
+					fileLock.writeLock().unlock();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (target != null) try {target.close();} catch (IOException e) {/*discard*/}
+		}
+	}
+
+	/**
+	 * Returns the user with nickname {@code name}, reading it from the data file if it isn't loaded.
+	 * A user which isn't pinned can be evicted as soon as other users are loaded, even while the caller is still
+	 * using it, and the next request loads another instance: callers which must be working on the only instance
+	 * of the user, e.g. to log it in, must use {@link #getPinned(String)}.
+	 * @param name the user's nickname.
+	 * @return the user or {@code null} if it doesn't exist.
+	 */
+	@Override
+	public User get(String name) {
+		User user = pinned.get(name);
+		if (user != null) return user;
+		synchronized(cache) {
+			user = cache.get(name);
+		}
+		if (user != null || !keydir.containsKey(name)) return user;
+
+		//Read the user without holding the cache's lock, if someone else loaded it meanwhile keep their copy
+		User loaded = load(name);
+		if (loaded == null) return null;
+		synchronized(cache) {
+			user = pinned.get(name);
+			if (user == null) user = cache.get(name);
+			if (user == null) {
+				user = loaded;
+				cache.put(name, user);
+				evict();
+			}
+		}
+		return user;
+	}
+
+	@Override
+	public User getPinned(String name) {
+		User user = get(name);
+		if (user == null) return null;
+		synchronized(cache) {
+			//Evicted meanwhile, nobody else can have loaded it since it's checked under the same lock
+			User current = pinned.get(name);
+			if (current == null) current = cache.get(name);
+			if (current == null) current = user;
+			pinLocked(current);
+			return current;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used users until the cache fits its size.
+	 * Must be called while holding the cache's lock.
+	 */
+	private void evict() {
+		Iterator<User> iterator = cache.values().iterator();
+		while (cache.size() > cacheSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	@Override
+	public boolean put(User user) {
+		synchronized(this) {
+			if (keydir.containsKey(user.getName())) return false;
+			synchronized(cache) {
+				cache.put(user.getName(), user);
+				evict();
+			}
+			write(user);
+		}
+		return true;
+	}
+
+	@Override
+	public void pin(User user) {
+		synchronized(cache) {
+			pinLocked(user);
+		}
+	}
+
+	/**
+	 * Pins {@code user} once more, must be called while holding the cache's lock.
+	 */
+	private void pinLocked(User user) {
+		cache.remove(user.getName());
+		pinned.put(user.getName(), user);
+		pins.merge(user.getName(), 1, Integer::sum);
+	}
+
+	@Override
+	public void unpin(User user) {
+		synchronized(cache) {
+			Integer count = pins.get(user.getName());
+			if (count == null) return;
+			if (count > 1) {
+				pins.put(user.getName(), count - 1);
+				return;
+			}
+			pins.remove(user.getName());
+			if (pinned.remove(user.getName(), user)) {
+				cache.put(user.getName(), user);
+				evict();
+			}
+		}
+	}
+
+	@Override
+	public void updateScore(User user, int delta) {
+		write(user);
+	}
+
+	@Override
+	public void updateScores(Map<User, Integer> deltas) {
+		write(deltas.keySet());
+	}
+
+	@Override
+	public void addEdge(User user, User friend) {
+		write(user);
+	}
+
+	@Override
+	public void forEach(Consumer<User> action) {
+		for (String name : keydir.keySet()) {
+			User user = pinned.get(name);
+			if (user == null) {
+				synchronized(cache) {
+					user = cache.get(name);
+				}
+			}
+			if (user == null) user = load(name);
+			if (user != null) action.accept(user);
+		}
+	}
+
+	@Override
+	public int size() {
+		return keydir.size();
+	}
+
+	/**
+	 * Every change is written out as soon as it's made, there is nothing to flush.
+	 */
+	@Override
+	public void flush() {}
+
+	@Override
+	public void close() {
+		if (syncTimer != null) syncTimer.cancel();
+		checkpointer.interrupt();
+		synchronized(this) {
+			try {
+				if (durability != Durability.NONE) sync();
+				channel.close();
+			} catch (IOException e) {e.printStackTrace();}
+		}
+		Logger.logInfo("Database closed; ", stats);
+	}
+}
@@ -0,0 +1,414 @@
+package wordquizzle.wqserver;
+
+import wordquizzle.Logger;
+import wordquizzle.wqserver.ChangeLog.Record;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The {@code MemoryStorageEngine} class keeps every user in memory, persisting the changes either to a change log
+ * compacted into a binary snapshot or by rewriting a JSON snapshot, see {@link Config#DB_PERSISTENCE}.
+ */
+public class MemoryStorageEngine implements StorageEngine {
+
+	private static final Path JSON_FILE = Paths.get("./database.json");
+	private static final Path BINARY_FILE = Paths.get("./database.db");
+	private static final Path LOG_FILE = Paths.get("./database.log");
+
+	private StringBuilder startupReport = new StringBuilder();
+	private Path dbfile;
+	private Path binfile;
+	private ConcurrentHashMap<String, User> backend;
+	private ChangeLog changelog = null;
+	private PeriodicTask checkpointer = null;
+
+	//Durability stuff
+	private CommitStats stats = new CommitStats();
+	private Timer syncTimer = null;
+
+	//Write-behind stuff
+	private PeriodicTask flusher = null;
+	private Object flushLock = new Object();
+	private ConcurrentLinkedQueue<Record> pendingRecords = new ConcurrentLinkedQueue<>();
+	private ConcurrentHashMap<User, Integer> dirtyUsers = new ConcurrentHashMap<>();
+	private AtomicInteger pendingChanges = new AtomicInteger(0);
+
+	/**
+	 * Loads the users from the snapshot, applies the change log on top of it and starts the background threads.
+	 */
+	public MemoryStorageEngine() {
+		backend = new ConcurrentHashMap<>();
+		dbfile = JSON_FILE;
+		binfile = BINARY_FILE;
+		load();
+		//Apply the changes made since the snapshot was written
+		initPersistence();
+	}
+
+	private void load() {
+		try {
+			//Store all of the DB on memory, this can get extremely costly but it will do for the project's purposes.
+			long start = System.nanoTime();
+			if (Files.exists(binfile)) {
+				for (User user : BinarySnapshot.read(binfile)) backend.put(user.getName(), user);
+				startupReport.append("binary snapshot ").append(elapsed(start)).append("ms");
+				return;
+			}
+
+			//Read the JSON file and parse it, create it if it doesn't exist.
+			if (!Files.exists(dbfile)) {
+				if (!Config.DB_PERSISTENCE.equals("json")) return;
+				Logger.logInfo("database.json file doesn't exist, creating one");
+				Files.createFile(dbfile);
+			}
+			readJson(dbfile, backend);
+			startupReport.append("JSON snapshot ").append(elapsed(start)).append("ms");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the users kept by the engine, from the snapshot and the change log, without converting nor creating
+	 * any file and without starting the background threads, e.g. to import them into another engine.
+	 * @return the users by nickname.
+	 * @throws IOException if the snapshot or the change log can't be read.
+	 */
+	static Map<String, User> readUsers() throws IOException {
+		Map<String, User> users = new HashMap<>();
+		if (Files.exists(BINARY_FILE)) {
+			for (User user : BinarySnapshot.read(BINARY_FILE)) users.put(user.getName(), user);
+		} else if (Files.exists(JSON_FILE)) readJson(JSON_FILE, users);
+		ChangeLog.replayAll(LOG_FILE, record -> apply(users, record));
+		return users;
+	}
+
+	private static long elapsed(long start) {
+		return (System.nanoTime() - start) / 1000000L;
+	}
+
+	/**
+	 * Streams the users stored in a JSON database file into {@code users}.
+	 * Each user is inserted as soon as it has been parsed, the file is never held in memory as a whole.
+	 * @param file  the JSON database file.
+	 * @param users where to insert the users.
+	 * @throws IOException if the file can't be read or parsed.
+	 */
+	static void readJson(Path file, Map<String, User> users) throws IOException {
+		if (Files.size(file) == 0) return;
+		try (JsonReader reader = new JsonReader(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+			reader.beginArray();
+			while (reader.hasNext()) {
+				User user = User.readJson(reader);
+				users.put(user.getName(), user);
+			}
+			reader.endArray();
+		}
+	}
+
+	/**
+	 * Replays the change log on top of the snapshot, opens it for appending if the database is persisted as a log
+	 * and starts the background threads.
+	 */
+	private void initPersistence() {
+		try {
+			Path logfile = LOG_FILE;
+			long start = System.nanoTime();
+			int count = ChangeLog.replayAll(logfile, record -> apply(backend, record));
+			if (startupReport.length() > 0) startupReport.append(", ");
+			startupReport.append(count).append(" log records ").append(elapsed(start)).append("ms");
+			Logger.logInfo("Loaded ", backend.size(), " users: ", startupReport);
+			if (Config.DB_PERSISTENCE.equals("log")) {
+				changelog = new ChangeLog(logfile, Config.DB_DURABILITY, stats);
+				checkpointer = new PeriodicTask("checkpointer", Config.CHECKPOINT_INTERVAL, this::checkpoint);
+				checkpointer.start();
+				if (!Files.exists(binfile)) {
+					//Convert the JSON database to the binary snapshot, the JSON file is kept as a backup
+					writeCheckpoint();
+					if (Files.exists(dbfile))
+						Files.move(dbfile, dbfile.resolveSibling(dbfile.getFileName() + ".bak"),
+						           StandardCopyOption.REPLACE_EXISTING);
+				}
+			} else if (count > 0 || Files.exists(binfile)) {
+				//Fold the log and the binary snapshot into the JSON file, they won't be kept up to date from now on
+				writeSnapshot();
+				ChangeLog.delete(logfile);
+				Files.deleteIfExists(binfile);
+			}
+			//The JSON snapshot is synced every time it's written
+			if (changelog != null && Config.DB_DURABILITY == Durability.INTERVAL) {
+				syncTimer = new Timer("fsync", true);
+				syncTimer.scheduleAtFixedRate(new TimerTask() {
+					@Override
+					public void run() {
+						sync();
+					}
+				}, Config.FSYNC_INTERVAL, Config.FSYNC_INTERVAL);
+			}
+			Logger.logInfo("Database persisted as ", Config.DB_PERSISTENCE, " with ",
+			               Config.DB_DURABILITY.toString().toLowerCase(), " durability",
+			               Config.DB_WRITE_BEHIND ? " and write-behind" : "");
+			if (Config.DB_WRITE_BEHIND) {
+				flusher = new PeriodicTask("flusher", Config.FLUSH_INTERVAL, this::flush);
+				flusher.start();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Applies a record read from the change log to {@code users}.
+	 * @param users  the users by nickname.
+	 * @param record the record to apply.
+	 */
+	private static void apply(Map<String, User> users, Record record) {
+		User user = users.get(record.name);
+		switch (record.type) {
+			case USER_CREATED:
+				users.putIfAbsent(record.name, new User(record.name, record.arg, 0));
+				break;
+			case SCORE:
+				if (user != null) user.restoreScore(record.score);
+				break;
+			case FRIENDSHIP:
+				if (user != null && users.containsKey(record.arg)) user.restoreFriend(record.arg);
+				break;
+		}
+	}
+
+	/**
+	 * Persists a change made to the database, or queues it if write-behind is enabled.
+	 * @param record the change.
+	 */
+	private void commit(Record record) {
+		if (flusher != null) {
+			pendingRecords.add(record);
+			changeQueued();
+		} else write(Collections.singletonList(record));
+	}
+
+	/**
+	 * Wakes up the flusher if enough changes have been queued.
+	 */
+	private void changeQueued() {
+		if (pendingChanges.incrementAndGet() >= Config.FLUSH_CHANGES) flusher.request();
+	}
+
+	/**
+	 * Writes a batch of changes.
+	 * @param records the changes.
+	 */
+	private void write(List<Record> records) {
+		if (changelog == null) {
+			long start = System.nanoTime();
+			writeSnapshot();
+			stats.commit(records.size(), System.nanoTime() - start);
+			return;
+		}
+		try {
+			changelog.append(records);
+			if (changelog.size() > Config.CHECKPOINT_LOG_SIZE) checkpointer.request();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Syncs to disk whatever has been appended to the change log since the last sync.
+	 */
+	private void sync() {
+		try {
+			changelog.sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Commits every queued change with a single write.
+	 * This acts as a barrier: when it returns every change made before the call has been written out.
+	 */
+	@Override
+	public void flush() {
+		synchronized(flushLock) {
+			pendingChanges.set(0);
+			//Dirty users must be drained before the records: a user is marked dirty only after its creation
+			//has been queued, so this way a score never gets written before the user it belongs to.
+			List<User> users = new ArrayList<>();
+			List<Integer> deltas = new ArrayList<>();
+			for (User user : dirtyUsers.keySet()) {
+				Integer delta = dirtyUsers.remove(user);
+				if (delta != null) {
+					users.add(user);
+					deltas.add(delta);
+				}
+			}
+			List<Record> batch = new ArrayList<>();
+			Record record;
+			while ((record = pendingRecords.poll()) != null) batch.add(record);
+			for (int i = 0; i < users.size(); i++)
+				batch.add(Record.score(users.get(i).getName(), deltas.get(i), users.get(i).getScore()));
+			if (!batch.isEmpty()) write(batch);
+		}
+	}
+
+	/**
+	 * Flushes the queued changes and closes the change log.
+	 */
+	@Override
+	public void close() {
+		flush();
+		if (syncTimer != null) syncTimer.cancel();
+		if (checkpointer != null) checkpointer.interrupt();
+		if (flusher != null) flusher.interrupt();
+		if (changelog != null) changelog.close();
+		Logger.logInfo("Database closed; ", stats);
+	}
+
+	/**
+	 * Writes a snapshot of the database if it changed since the last one.
+	 */
+	@Override
+	public void checkpoint() {
+		if (changelog == null || (changelog.size() == 0 && !changelog.hasSealedSegments())) return;
+		writeCheckpoint();
+	}
+
+	/**
+	 * Writes a binary snapshot of the database and drops the part of the change log it covers.
+	 * Only the rotation of the log is done while holding the log's lock: the snapshot is built by iterating
+	 * the backend, which never blocks readers, and every change logged meanwhile is idempotent so it can be
+	 * safely replayed on top of a snapshot which already includes it.
+	 */
+	private void writeCheckpoint() {
+		long start = System.currentTimeMillis();
+		Path tmpfile = binfile.resolveSibling(binfile.getFileName() + ".tmp");
+		try {
+			int sealed = changelog.rotate();
+			//The snapshot must hit the disk before the log segments it replaces are deleted
+			BinarySnapshot.write(tmpfile, backend.values(), stats);
+			Files.move(tmpfile, binfile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			ChangeLog.syncDirectory(binfile);
+			changelog.deleteSegments(sealed);
+			Logger.logInfo("Checkpoint of ", backend.size(), " users written in ",
+			               System.currentTimeMillis() - start, "ms; ", stats);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Rewrites the whole database file.
+	 * The snapshot is streamed to a temporary file, synced to disk and then atomically moved over the database file,
+	 * so a crash while writing never leaves a truncated database behind, whatever the durability policy.
+	 */
+	private synchronized void writeSnapshot() {
+		Path tmpfile = dbfile.resolveSibling(dbfile.getFileName() + ".tmp");
+		try {
+			Gson gson = Database.getCompactDBGson();
+			try (FileChannel channel = FileChannel.open(tmpfile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			                                            StandardOpenOption.TRUNCATE_EXISTING);
+			     JsonWriter writer = new JsonWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1))) {
+				writer.beginArray();
+				for (User user : backend.values()) gson.toJson(user, User.class, writer);
+				writer.endArray();
+				writer.flush();
+				long start = System.nanoTime();
+				channel.force(true);
+				stats.sync(System.nanoTime() - start);
+			}
+			Files.move(tmpfile, dbfile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			ChangeLog.syncDirectory(dbfile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public User get(String name) {
+		return backend.get(name);
+	}
+
+	@Override
+	public User getPinned(String name) {
+		return get(name);
+	}
+
+	@Override
+	public boolean put(User user) {
+		if (backend.putIfAbsent(user.getName(), user) != null) return false;
+		commit(Record.userCreated(user));
+		return true;
+	}
+
+	@Override
+	public void updateScore(User user, int delta) {
+		if (flusher != null) {
+			//Just mark the user as dirty, its score will be read when the batch is committed
+			dirtyUsers.merge(user, delta, Integer::sum);
+			changeQueued();
+		} else commit(Record.score(user.getName(), delta, user.getScore()));
+	}
+
+	@Override
+	public void updateScores(Map<User, Integer> deltas) {
+		if (flusher != null) {
+			deltas.forEach((User user, Integer delta) -> {
+				dirtyUsers.merge(user, delta, Integer::sum);
+				changeQueued();
+			});
+			return;
+		}
+		List<Record> records = new ArrayList<>(deltas.size());
+		deltas.forEach((User user, Integer delta) -> records.add(Record.score(user.getName(), delta, user.getScore())));
+		write(records);
+	}
+
+	@Override
+	public void addEdge(User user, User friend) {
+		commit(Record.friendship(user.getName(), friend.getName()));
+	}
+
+	/**
+	 * Every user is always in memory, there is nothing to pin.
+	 */
+	@Override
+	public void pin(User user) {}
+
+	@Override
+	public void unpin(User user) {}
+
+	@Override
+	public void forEach(Consumer<User> action) {
+		backend.values().forEach(action);
+	}
+
+	@Override
+	public int size() {
+		return backend.size();
+	}
+}
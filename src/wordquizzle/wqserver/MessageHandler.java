@@ -1,35 +1,68 @@
 package wordquizzle.wqserver;
 
-import java.util.NoSuchElementException;
-import java.util.Scanner;
-
 import wordquizzle.Response;
+import wordquizzle.Tokenizer;
+import wordquizzle.UserState;
 
 /**
- * The {@code MessageHandler} abstract class describes how to handle the messages received by the user given
- * the state the user is in.
+ * The {@code MessageHandler} class dispatches the messages received by the users to the {@link CommandHandler}
+ * matching the command and the state the user is in, as a Singleton.
+ * <p>
+ * The handlers are stateless, they're created once and kept in a table indexed by the user's state and the
+ * {@link Command}. The commands a state doesn't accept have no handler and are answered with {@code INVALID_COMMAND}.
  */
-public abstract class MessageHandler {
+public class MessageHandler {
+
+	private static final MessageHandler handler = new MessageHandler();
+	//Tokenizers are reused, one per thread, the handlers don't keep them after handling the message
+	private static final ThreadLocal<Tokenizer> tokenizers = ThreadLocal.withInitial(() -> new Tokenizer(""));
+
+	private final CommandHandler[][] table = new CommandHandler[UserState.values().length][Command.values().length];
+
+	private MessageHandler() {
+		CommandHandler logout = new LogoutHandler();
+		//Quitting a challenge before logging out
+		CommandHandler challengeLogout = new ChallengeLogoutHandler();
+		CommandHandler abort = new AbortChallengeHandler();
+
+		//Before logging in
+		set(UserState.OFFLINE, Command.LOGIN, new LoginHandler());
+
+		//After logging in
+		set(UserState.IDLE, Command.LOGOUT, logout);
+		set(UserState.IDLE, Command.FRIEND_LIST, new FriendListHandler());
+		set(UserState.IDLE, Command.LEADERBOARD, new LeaderboardHandler());
+		set(UserState.IDLE, Command.FRIEND_LIST_PAGE, new FriendListPageHandler());
+		set(UserState.IDLE, Command.LEADERBOARD_PAGE, new LeaderboardPageHandler());
+		set(UserState.IDLE, Command.SCORE, new ScoreHandler());
+		set(UserState.IDLE, Command.ADD_FRIEND, new AddFriendHandler());
+		set(UserState.IDLE, Command.CHALLENGE, new IssueChallengeHandler());
+
+		//While waiting for a challenge request to be accepted, "close" is sent by the GUI when the window is closed
+		set(UserState.CHALLENGE_ISSUED, Command.LOGOUT, challengeLogout);
+		set(UserState.CHALLENGE_ISSUED, Command.CLOSE, abort);
+
+		//After receiving a challenge request
+		set(UserState.CHALLENGED, Command.ACCEPT, new AcceptChallengeHandler());
+		set(UserState.CHALLENGED, Command.REJECT, abort);
+		set(UserState.CHALLENGED, Command.LOGOUT, challengeLogout);
+
+		//During a game
+		set(UserState.IN_GAME, Command.WORD, new SendWordCommandHandler());
+		set(UserState.IN_GAME, Command.LOGOUT, challengeLogout);
+		set(UserState.IN_GAME, Command.CLOSE, abort);
+	}
+
+	private void set(UserState state, Command command, CommandHandler commandHandler) {
+		table[state.ordinal()][command.ordinal()] = commandHandler;
+	}
 
 	/**
-	 * Factory method for obtaining the appropriate MessageHandler given the user's state.
-	 * @param user The user
-	 * @return The appropriate MessageHandler
+	 * Return the message handler singleton
+	 * @return message handler singleton
 	 */
-	public static MessageHandler getHandler(User user) {
-		if (user == null) return new DefaultMessageHandler();
-		switch(user.getState()) {
-			case IDLE:
-				return new LoggedInMessageHandler();
-			case CHALLENGED:
-				return new ChallengedMessageHandler();
-			case CHALLENGE_ISSUED:
-				return new ChallengeIssuedMessageHandler();
-			case IN_GAME:
-				return new InGameMessageHandler();
-			default:
-				return new DefaultMessageHandler();
-		}
+	public static MessageHandler getHandler() {
+		return handler;
 	}
 
 	/**
@@ -38,148 +71,17 @@ public abstract class MessageHandler {
 	 * @param evh The EventHandler that received the message.
 	 */
 	public void startCompute(String msg, EventHandler evh) {
-		Scanner scannerstub = new Scanner(msg);
-		Scanner scanner = scannerstub.useDelimiter(":");
-		compute(scanner, evh);
-		scanner.close();
-	}
-
-	public abstract void compute(Scanner scanner, EventHandler evh);
-}
-
-/**
- * The {@code DefaultMessageHandler} handles the messages a client sends before logging in.
- */
-class DefaultMessageHandler extends MessageHandler {
-	public void compute(Scanner scanner, EventHandler evh) {
-		try {
-			String cmd = scanner.next();
-			switch(cmd) {
-				case "login":
-					new LoginHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				default:
-					evh.write(Response.INVALID_COMMAND.getCode());
-					break;
-			}
-		} catch (NoSuchElementException e) {e.printStackTrace(); return;}
-	}
-}
-
-/**
- * The {@code LoggedInMessageHandler} handles the messages a user sends after logging in.
- */
-class LoggedInMessageHandler extends MessageHandler {
-	public void compute(Scanner scanner, EventHandler evh) {
-		try {
-			String cmd = scanner.next();
-			switch(cmd) {
-				case "logout":
-					new LogoutHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				case "lista_amici":
-					new FriendListHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				case "mostra_classifica":
-					new LeaderboardHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				case "mostra_punteggio":
-					new ScoreHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				case "aggiungi_amico":
-					new AddFriendHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				case "sfida":
-					new IssueChallengeHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				default:
-					evh.write(Response.INVALID_COMMAND.getCode());
-					break;
-			}
-		} catch (NoSuchElementException e) {e.printStackTrace(); return;}
-	}
-}
-
-/**
- * The {@code ChallengeIssuedMessageHandler} handles the messages a user sends while waiting for a challenge request
- * to be accepted.
- */
-class ChallengeIssuedMessageHandler extends MessageHandler {
-	public void compute(Scanner scanner, EventHandler evh) {
-		try {
-			String cmd = scanner.next();
-			switch(cmd) {
-				case "logout":
-					//Handle the challenge request abort too
-					evh.getUser().getChallenge().abortChallenge(evh.getUser());
-					new LogoutHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				case "close":
-					//For GUI only, handle the window being closed.
-					evh.getUser().getChallenge().abortChallenge(evh.getUser());
-					break;
-				default:
-					evh.write(Response.INVALID_COMMAND.getCode());
-					break;
-			}
-		} catch (NoSuchElementException e) {e.printStackTrace(); return;}
-	}
-}
+		User user = evh.getUser();
+		UserState state = user == null ? UserState.OFFLINE : user.getState();
+		Command command = Command.of(msg);
+		CommandHandler commandHandler = command == null ? null : table[state.ordinal()][command.ordinal()];
+		if (commandHandler == null) {
+			evh.write(Response.INVALID_COMMAND);
+			return;
+		}
 
-/**
- * The {@code ChallengedMessageHandler} handles the messages a user sends after receiving a challenge request 
- */
-class ChallengedMessageHandler extends MessageHandler {
-	public void compute(Scanner scanner, EventHandler evh) {
-		try {
-			String cmd = scanner.next();
-			switch(cmd) {
-				case "no":
-					//Handle the challenge request abort too
-					evh.getUser().getChallenge().abortChallenge(evh.getUser());
-					break;
-				case "yes":
-					//This is done in order to avoid blocking the Reactor
-					new Thread(evh.getUser().getChallenge()).start();
-					break;
-				case "logout":
-					//Handle the challenge request abort too
-					evh.getUser().getChallenge().abortChallenge(evh.getUser());
-					new LogoutHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				default:
-					evh.write(Response.INVALID_COMMAND.getCode());
-					break;
-			}
-		} catch (NoSuchElementException e) {e.printStackTrace(); return;}
+		Tokenizer tokenizer = tokenizers.get().reset(msg);
+		tokenizer.skip();
+		commandHandler.handle(evh, tokenizer);
 	}
 }
-
-
-/**
- * The {@code InGameMessageHandler} handles the message a client sends during a WordQuizzle game.
- */
-class InGameMessageHandler extends MessageHandler {
-	public void compute(Scanner scanner, EventHandler evh) {
-		try {
-			String cmd = scanner.next();
-			switch(cmd) {
-				case "word":
-					new SendWordCommandHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				case "logout":
-					//Handle the challenge request abort too
-					evh.getUser().getChallenge().abortChallenge(evh.getUser());
-					new LogoutHandler(evh, evh.getUser()).handle(scanner);
-					break;
-				case "close":
-					//For GUI only, handle the window being closed.
-					evh.getUser().getChallenge().abortChallenge(evh.getUser());
-					break;
-				default:
-					evh.write(Response.INVALID_COMMAND.getCode());
-					break;
-			}
-		} catch (NoSuchElementException e) {e.printStackTrace(); return;}
-	}
-}
\ No newline at end of file
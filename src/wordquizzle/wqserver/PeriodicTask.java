@@ -0,0 +1,49 @@
+package wordquizzle.wqserver;
+
+/**
+ * The {@code PeriodicTask} class runs an action on its own daemon thread every {@code interval} milliseconds, or
+ * as soon as it's requested, e.g. committing the changes queued by a write-behind database or checkpointing a
+ * storage engine.
+ */
+public class PeriodicTask extends Thread {
+
+	private Runnable action;
+	private long interval;
+	private boolean requested = false;
+
+	/**
+	 * Constructs the task.
+	 * @param name     the name of the task's thread.
+	 * @param interval milliseconds between two runs of the action.
+	 * @param action   the action.
+	 */
+	public PeriodicTask(String name, long interval, Runnable action) {
+		super(name);
+		this.action = action;
+		this.interval = interval;
+		setDaemon(true);
+	}
+
+	/**
+	 * Asks for the action to be run as soon as possible.
+	 */
+	public synchronized void request() {
+		requested = true;
+		notify();
+	}
+
+	@Override
+	public void run() {
+		while (!Thread.interrupted()) {
+			try {
+				synchronized(this) {
+					if (!requested) wait(interval);
+					requested = false;
+				}
+				action.run();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package wordquizzle.wqserver;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import wordquizzle.UserState;
+import wordquizzle.wqserver.Database.UserNotFoundException;
+
+/**
+ * The {@code Ranking} class holds a page of a user's leaderboard: the user and the friends sorted by descending
+ * score and, on equal scores, by nickname.
+ * <p>
+ * Each online user gets a sorted table of the ranked users the first time the leaderboard is asked for, see
+ * {@link #get(User, int, int)}, and keeps it until logging out. When the score of a ranked user changes, the user is
+ * found in the table by binary search on the old score and moved to the new position in place, while adding a friend
+ * drops the table so that the next request builds it again. Readers copy just the page they need.
+ * <p>
+ * The ranking's version is the highest {@link User#getVersion()} among the ranked users, so a ranking with the same
+ * version as a newer one holds the same data.
+ */
+class Ranking {
+
+	/**
+	 * Holds a user's sorted table, guarded by its own lock.
+	 */
+	private static class Entry {
+		//null until built and after being dropped
+		private String[] names = null;
+		private int[] scores = null;
+		private long version = 0;
+
+		/**
+		 * Returns the position of the user named {@code name} with score {@code score}, or
+		 * {@code -(insertion point) - 1} if it's not there.
+		 */
+		private int search(String name, int score) {
+			int low = 0;
+			int high = names.length - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (before(names[middle], scores[middle], name, score)) low = middle + 1;
+				else if (scores[middle] == score && names[middle].equals(name)) return middle;
+				else high = middle - 1;
+			}
+			return -low - 1;
+		}
+
+		/**
+		 * Moves {@code user}, whose score was {@code oldScore}, to the position of its current score.
+		 */
+		private void move(User user, int oldScore) {
+			String name = user.getName();
+			int score = user.getScore();
+			//Bump the version even if the user isn't found: a table built between the change and its version being
+			//stamped already holds the new score but still the old version
+			version = Math.max(version, user.getVersion());
+			int from = search(name, oldScore);
+			//Not there if the table has been built after the change, or if the friendship is dangling
+			if (from < 0) return;
+
+			//The insertion point counts the user's old position if it comes before
+			int to = -search(name, score) - 1;
+			if (to < 0) return;
+			if (to > from) to--;
+			if (to < from) {
+				System.arraycopy(names, to, names, to + 1, from - to);
+				System.arraycopy(scores, to, scores, to + 1, from - to);
+			} else if (to > from) {
+				System.arraycopy(names, from + 1, names, from, to - from);
+				System.arraycopy(scores, from + 1, scores, from, to - from);
+			}
+			names[to] = name;
+			scores[to] = score;
+		}
+	}
+
+	//The users' tables by FriendGraph id
+	private static final ConcurrentHashMap<Integer, Entry> cache = new ConcurrentHashMap<>();
+
+	private final String[] names;
+	private final int[] scores;
+	private final int total;
+	private final long version;
+
+	private Ranking(String[] names, int[] scores, int total, long version) {
+		this.names = names;
+		this.scores = scores;
+		this.total = total;
+		this.version = version;
+	}
+
+	/**
+	 * Returns {@code true} iff the user named {@code name} with score {@code score} comes before the one named
+	 * {@code otherName} with score {@code otherScore}.
+	 */
+	private static boolean before(String name, int score, String otherName, int otherScore) {
+		if (score != otherScore) return score > otherScore;
+		return name.compareTo(otherName) < 0;
+	}
+
+	/**
+	 * Returns the entry of {@code user} with its table built, the entry's lock must be held.
+	 */
+	private static Entry built(Entry entry, User user) {
+		if (entry.names == null) build(entry, user);
+		return entry;
+	}
+
+	/**
+	 * Returns the page of {@code user}'s ranking made of the positions from {@code offset} to
+	 * {@code offset + limit}, building the user's table if needed.
+	 * @param user   the user.
+	 * @param offset the first position, starting from 0.
+	 * @param limit  the maximum number of positions.
+	 * @return the page.
+	 */
+	static Ranking get(User user, int offset, int limit) {
+		Entry entry = entry(user);
+		synchronized(entry) {
+			built(entry, user);
+			int total = entry.names.length;
+			int from = Math.min(offset, total);
+			int to = (int)Math.min(total, (long)offset + limit);
+			return new Ranking(Arrays.copyOfRange(entry.names, from, to), Arrays.copyOfRange(entry.scores, from, to),
+			                   total, entry.version);
+		}
+	}
+
+	/**
+	 * Returns the version of {@code user}'s ranking, building the user's table if needed.
+	 * @param user the user.
+	 * @return the version of the ranking.
+	 */
+	static long getVersion(User user) {
+		Entry entry = entry(user);
+		synchronized(entry) {
+			return built(entry, user).version;
+		}
+	}
+
+	/**
+	 * Returns the entry of {@code user}, adding it if the user has none.
+	 */
+	private static Entry entry(User user) {
+		//The entry is published before the scores are read, so no change can get lost in between
+		Entry entry = cache.computeIfAbsent(user.getId(), id -> new Entry());
+		//The user may have logged out and been evicted meanwhile, don't leave the entry behind
+		if (user.getState() == UserState.OFFLINE) cache.remove(user.getId(), entry);
+		return entry;
+	}
+
+	/**
+	 * Builds the table of {@code user} and the friends.
+	 */
+	private static void build(Entry entry, User user) {
+		FriendGraph graph = FriendGraph.getGraph();
+		int[] friends = graph.getFriends(user.getId());
+		String[] names = new String[friends.length + 1];
+		int[] scores = new int[friends.length + 1];
+
+		//Load the user and the friends, reading the versions before the scores which may change meanwhile
+		long version = user.getVersion();
+		names[0] = user.getName();
+		scores[0] = user.getScore();
+		int size = 1;
+		for (int friend : friends) {
+			try {
+				User other = Database.getDatabase().getUser(graph.getName(friend));
+				version = Math.max(version, other.getVersion());
+				names[size] = other.getName();
+				scores[size] = other.getScore();
+				size++;
+			} catch (UserNotFoundException e) {/*dangling friendship, skip it*/}
+		}
+
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) order[i] = i;
+		Arrays.sort(order, (i, j) -> i.equals(j) ? 0 : before(names[i], scores[i], names[j], scores[j]) ? -1 : 1);
+		entry.names = new String[size];
+		entry.scores = new int[size];
+		for (int i = 0; i < size; i++) {
+			entry.names[i] = names[order[i]];
+			entry.scores[i] = scores[order[i]];
+		}
+		entry.version = version;
+	}
+
+	/**
+	 * Moves {@code user} to its new position in the tables of the user and the friends, it must be called with the
+	 * user's score lock held after each change so that the changes are applied in order.
+	 * @param user     the user whose score changed.
+	 * @param oldScore the user's score before the change.
+	 */
+	static void scoreChanged(User user, int oldScore) {
+		update(user.getId(), user, oldScore);
+		for (int friend : FriendGraph.getGraph().getFriends(user.getId())) update(friend, user, oldScore);
+	}
+
+	private static void update(int id, User user, int oldScore) {
+		Entry entry = cache.get(id);
+		if (entry == null) return;
+		synchronized(entry) {
+			if (entry.names != null) entry.move(user, oldScore);
+		}
+	}
+
+	/**
+	 * Drops the table of {@code user}, whose friend list changed.
+	 * @param user the user.
+	 */
+	static void friendsChanged(User user) {
+		Entry entry = cache.get(user.getId());
+		if (entry == null) return;
+		synchronized(entry) {
+			entry.names = null;
+			entry.scores = null;
+		}
+	}
+
+	/**
+	 * Forgets the table of {@code user}, who logged out.
+	 * @param user the user.
+	 */
+	static void evict(User user) {
+		cache.remove(user.getId());
+	}
+
+	/**
+	 * Returns the number of users in the page.
+	 * @return the number of users in the page.
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * Returns the number of ranked users.
+	 * @return the number of ranked users.
+	 */
+	int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns the nickname of the {@code i}-th user of the page, starting from 0.
+	 * @param i the user's index in the page.
+	 * @return the user's nickname.
+	 */
+	String getName(int i) {
+		return names[i];
+	}
+
+	/**
+	 * Returns the score of the {@code i}-th user of the page, starting from 0.
+	 * @param i the user's index in the page.
+	 * @return the user's score.
+	 */
+	int getScore(int i) {
+		return scores[i];
+	}
+
+	/**
+	 * Returns the ranking's version.
+	 * @return the ranking's version.
+	 */
+	long getVersion() {
+		return version;
+	}
+}
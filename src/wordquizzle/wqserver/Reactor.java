@@ -3,14 +3,13 @@ package wordquizzle.wqserver;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.List;
-import java.util.LinkedList;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The {@code Reactor} class implements a sort of Reactor pattern for handling reads and writes
@@ -18,29 +17,66 @@ import java.util.NoSuchElementException;
  */
 public class Reactor extends Thread {
 
+	//Milliseconds between two checks of the connections whose reads are paused
+	private static final long SLOW_CONSUMER_CHECK = 1000;
+	//Milliseconds between two samples of the event rate
+	private static final long LOAD_SAMPLE = 1000;
+	//Events per second which weigh as much as a connection when balancing
+	private static final int EVENTS_PER_CONNECTION = 16;
+	//Slots of the idle connections' timing wheel
+	private static final int IDLE_SLOTS = 512;
+
 	public static int reactornum = 0;
 	public static Reactor[] reactors;
 	private int id;
-	private int numOfChannels ;
+	private AtomicInteger numOfChannels;
+	//Events handled per second, averaged over the last few samples
+	private volatile int eventRate = 0;
+	private int events = 0;
+	private long lastSample;
 	private Selector selector;
 	
 	//Wakeup stuff
 	private Pipe wakeupPipe;
 	private SelectionKey wakeupPipeKey;
 	private ByteBuffer wakeupPipeBuffer;
+	private ByteBuffer wakeupByte;
+	//Set while a wakeup byte is in the pipe, further wakeups until the reactor wakes up are useless
+	private AtomicBoolean wakeupPending;
 	
 	//Channel stuff
-	private BlockingQueue<SocketChannel> registrationQueue;
-	private List<SocketChannel> channels;
+	private Queue<SocketChannel> registrationQueue;
+	private Queue<EventHandler> closeQueue;
+	//Connections with queued messages, flushed once per loop
+	private Queue<EventHandler> flushQueue;
+	//Connections whose reads are paused because they're not reading their messages
+	private Set<EventHandler> paused;
+	private Set<SocketChannel> channels;
+	//Connections waiting for their next idle check, null if neither pings nor the idle timeout are enabled
+	private TimingWheel<EventHandler> idleWheel;
 
 	/**
 	 * Returns the "least busy" reactor.
+	 * Two reactors are picked at random and the less loaded one is returned, which spreads the connections almost
+	 * as well as looking at every reactor without every acceptor piling on the same one.
 	 * @return the "least busy" reactor.
 	 */
 	public static Reactor getReactor() {
-		return Arrays.stream(reactors)
-		             .min(Comparator.comparing(Reactor::getNumOfChannels))
-		             .orElseThrow(NoSuchElementException::new);
+		return getReactor(reactors);
+	}
+
+	/**
+	 * Returns the "least busy" reactor of {@code group}, see {@link #getReactor()}.
+	 * @param group the reactors to choose from.
+	 * @return the "least busy" reactor.
+	 */
+	public static Reactor getReactor(Reactor[] group) {
+		if (group.length == 1) return group[0];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(group.length);
+		int second = random.nextInt(group.length - 1);
+		if (second >= first) second++;
+		return group[first].getLoad() <= group[second].getLoad() ? group[first] : group[second];
 	}
 
 	/**
@@ -49,14 +85,22 @@ public class Reactor extends Thread {
 	public Reactor() {
 		try {
 			this.selector = Selector.open();
-			this.registrationQueue = new LinkedBlockingQueue<>();
-			this.channels = new LinkedList<>();
+			this.registrationQueue = new ConcurrentLinkedQueue<>();
+			this.closeQueue = new ConcurrentLinkedQueue<>();
+			this.flushQueue = new ConcurrentLinkedQueue<>();
+			this.paused = ConcurrentHashMap.newKeySet();
+			this.channels = ConcurrentHashMap.newKeySet();
 			this.wakeupPipe = Pipe.open();
 			wakeupPipe.source().configureBlocking(false);
 			this.wakeupPipeKey = wakeupPipe.source().register(selector, SelectionKey.OP_READ);
 			this.wakeupPipeBuffer = ByteBuffer.allocate(512);
+			this.wakeupByte = ByteBuffer.allocate(1);
+			this.wakeupPending = new AtomicBoolean(false);
 			this.id = Reactor.reactornum++;
-			this.numOfChannels = 0;
+			this.numOfChannels = new AtomicInteger(0);
+			this.lastSample = System.currentTimeMillis();
+			if (Config.IDLE_TIMEOUT > 0 || Config.PING_INTERVAL > 0)
+				this.idleWheel = new TimingWheel<>(Math.max(1, Config.IDLE_TICK), IDLE_SLOTS, lastSample);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -64,13 +108,29 @@ public class Reactor extends Thread {
 
 	/**
 	 * Wakes up the reactor.
+	 * Does nothing if called by the reactor itself, which isn't waiting, or if the reactor has already been woken up
+	 * and hasn't handled it yet.
 	 */
 	public void wakeup() {
+		if (Thread.currentThread() == this || !wakeupPending.compareAndSet(false, true)) return;
+
 		//Write to the pipe to wakeup the selector
-		ByteBuffer one = ByteBuffer.allocate(1);
-		try {
-			while (wakeupPipe.sink().write(one) == 0);
-		} catch (IOException e) {e.printStackTrace();}
+		synchronized(wakeupByte) {
+			wakeupByte.clear();
+			try {
+				while (wakeupPipe.sink().write(wakeupByte) == 0);
+			} catch (IOException e) {e.printStackTrace();}
+		}
+	}
+
+	/**
+	 * Schedules the queued messages of {@code evh} to be sent at the end of the current (or next) loop, so that
+	 * all the messages queued in the meantime are sent together.
+	 * @param evh the connection's event handler.
+	 */
+	void flush(EventHandler evh) {
+		flushQueue.add(evh);
+		wakeup();
 	}
 
 	/**
@@ -79,9 +139,29 @@ public class Reactor extends Thread {
 	 */
 	public void registerChannel(SocketChannel channel) {
 		//Add channel to the queue
+		numOfChannels.incrementAndGet();
 		registrationQueue.add(channel);
 		wakeup();
-		this.numOfChannels++;
+	}
+
+	/**
+	 * Asks the reactor to close the connection handled by {@code evh}, for closing connections from outside the
+	 * reactor's thread.
+	 * @param evh the connection's event handler.
+	 */
+	public void requestClose(EventHandler evh) {
+		closeQueue.add(evh);
+		wakeup();
+	}
+
+	/**
+	 * Tracks the connections whose reads have been paused, which are checked periodically for being too slow
+	 * since they can be stuck without generating any event.
+	 * @param evh    the connection's event handler.
+	 * @param paused {@code true} iff reads have been paused.
+	 */
+	void setReadPaused(EventHandler evh, boolean paused) {
+		if (paused) this.paused.add(evh); else this.paused.remove(evh);
 	}
 
 	/**
@@ -89,8 +169,7 @@ public class Reactor extends Thread {
 	 * @param channel the channel to remove
 	 */
 	public void removeChannel(SocketChannel channel) {
-		channels.remove(channel);
-		this.numOfChannels--;
+		if (channels.remove(channel)) numOfChannels.decrementAndGet();
 		try {
 			channel.close();
 		} catch (IOException e) {e.printStackTrace();}
@@ -100,7 +179,40 @@ public class Reactor extends Thread {
 	 * @return number of channels registered to a Reactor as an integer
 	 */
 	public int getNumOfChannels() {
-		return this.numOfChannels;
+		return numOfChannels.get();
+	}
+
+	/**
+	 * Returns how loaded the reactor is: the number of its channels plus one for every
+	 * {@value #EVENTS_PER_CONNECTION} events it's recently been handling per second.
+	 * @return the reactor's load.
+	 */
+	public int getLoad() {
+		return numOfChannels.get() + eventRate / EVENTS_PER_CONNECTION;
+	}
+
+	/**
+	 * Updates the event rate once every {@value #LOAD_SAMPLE} milliseconds, halving the weight of the older samples.
+	 */
+	private void sampleLoad() {
+		long now = System.currentTimeMillis();
+		if (now - lastSample < LOAD_SAMPLE) return;
+		eventRate = (int)((eventRate + events * 1000L / (now - lastSample)) / 2);
+		events = 0;
+		lastSample = now;
+	}
+
+	/**
+	 * Hands the connections whose idle check is due to {@link EventHandler#checkIdle(long)}, and schedules their
+	 * next check. Connections which have been active in the meantime are simply rescheduled.
+	 */
+	private void checkIdle() {
+		if (idleWheel == null) return;
+		final long now = System.currentTimeMillis();
+		idleWheel.advance(now, evh -> {
+			long next = evh.checkIdle(now);
+			if (next > 0) idleWheel.schedule(evh, next);
+		});
 	}
 
 	/**
@@ -117,18 +229,20 @@ public class Reactor extends Thread {
 	 */
 	private void handleChannelRegistration() {
 		SocketChannel channel;
-		try {
-			//poll the queue
-			while ((channel = registrationQueue.poll(25, TimeUnit.MILLISECONDS)) != null) {
+		//drain the queue without waiting, the selector is woken up when a channel is added
+		while ((channel = registrationQueue.poll()) != null) {
+			try {
 				//Register the channel with the reactor.
 				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
 				channels.add(channel);
 				EventHandler evh = new EventHandler(key);
 				evh.registerHandler(this);
 				key.attach(evh);
+				if (idleWheel != null) idleWheel.schedule(evh, evh.nextIdleCheck());
+			} catch (ClosedChannelException e) {
+				//The client went away before being registered
+				numOfChannels.decrementAndGet();
 			}
-		} catch (ClosedChannelException | InterruptedException e) {
-			e.printStackTrace();
 		}
 	}
 
@@ -139,32 +253,50 @@ public class Reactor extends Thread {
 				//Check if there's channels awaiting registration with the reactor.
 				handleChannelRegistration();
 
+				//Close the connections other threads gave up on
+				EventHandler closing;
+				while ((closing = closeQueue.poll()) != null) closing.close();
+
 				//Select and do work (eventually)
-				selector.select();
+				long timeout = paused.isEmpty() && eventRate == 0 ? 0 : Math.min(SLOW_CONSUMER_CHECK, LOAD_SAMPLE);
+				if (idleWheel != null && idleWheel.size() > 0)
+					timeout = timeout == 0 ? idleWheel.getTick() : Math.min(timeout, idleWheel.getTick());
+				selector.select(timeout);
+				sampleLoad();
+				checkIdle();
+				for (EventHandler evh : paused) if (evh.isSlowConsumer()) evh.close();
 				if (wakeupPipeKey.isReadable()) {
 					//Handle wake ups
 					wakeupPipe.source().read(wakeupPipeBuffer);
 					wakeupPipeBuffer.clear();
 				}
+				//Only after the pipe has been emptied, or a wakeup could be lost
+				wakeupPending.set(false);
 				selector.selectedKeys().remove(wakeupPipeKey);
+				events += selector.selectedKeys().size();
 				for (SelectionKey key : selector.selectedKeys()) {
 					EventHandler evh = (EventHandler)key.attachment();
 					//Handle writes
-					if (key.isWritable())
+					if (key.isValid() && key.isWritable())
 						try {evh.send();} catch (IOException e) {
-							removeChannel((SocketChannel)key.channel());
-							key.cancel();
+							evh.close();
 						}
 					
 					//Handle reads
-					if (key.isReadable()) 
+					if (key.isValid() && key.isReadable()) 
 						try {evh.handle();} catch (IOException e) {
-							removeChannel((SocketChannel)key.channel());
-							key.cancel();
+							evh.close();
 						}
 					
 				}
 				selector.selectedKeys().clear();
+
+				//Send what has been queued during this loop, or by other threads since the last one
+				EventHandler flushing;
+				while ((flushing = flushQueue.poll()) != null)
+					try {flushing.send();} catch (IOException e) {
+						flushing.close();
+					}
 			} catch (IOException e) {
 				e.printStackTrace();
 				return;
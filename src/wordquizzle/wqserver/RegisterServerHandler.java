@@ -24,14 +24,12 @@ public class RegisterServerHandler extends RemoteServer implements WQRegisterInt
 		if (!nameMatcher.find() || !nameMatcher.group(1).equals(name)) throw new UsernameNotValid();
 		if (!pwMatcher.find() || !pwMatcher.group(1).equals(password)) throw new PasswordNotValid();
 
-		//Check if the username isn't already registered and if not add it to the database
-		if (!Database.getDatabase().hasUser(name)) {
-			User user = new User();
-			user.setName(name);
-			user.setPassword(password);
-			Database.getDatabase().updateUser(user);
-			Logger.logInfo("Registered user ", name);
-		} else throw new UserAlreadyExists();
+		//Add the user to the database unless the username is already registered
+		User user = new User();
+		user.setName(name);
+		user.setPassword(password);
+		if (Database.getDatabase().createUser(user)) Logger.logInfo("Registered user ", name);
+		else throw new UserAlreadyExists();
 	}
 
 	public void initHandler(int port) {
@@ -0,0 +1,100 @@
+package wordquizzle.wqserver;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The {@code StorageEngine} interface describes where and how the {@link Database} keeps its users.
+ * <p>
+ * Implementations must be thread safe and must hand out a single {@code User} instance per nickname, the
+ * {@code User} objects are the ones the server mutates and their changes are reported back to the engine
+ * through {@link #updateScore(User, int)} and {@link #addEdge(User, User)}.
+ */
+public interface StorageEngine {
+
+	/**
+	 * Returns the user with nickname {@code name}, loading it if needed.
+	 * @param name the user's nickname.
+	 * @return the user or {@code null} if it doesn't exist.
+	 */
+	User get(String name);
+
+	/**
+	 * Returns the user with nickname {@code name} like {@link #get(String)} and pins it in the same step, so that
+	 * no other instance of the user can be loaded until the caller calls {@link #unpin(User)}.
+	 * @param name the user's nickname.
+	 * @return the user or {@code null} if it doesn't exist.
+	 */
+	User getPinned(String name);
+
+	/**
+	 * Stores a newly registered user.
+	 * @param user the user to store.
+	 * @return {@code true} iff the user has been stored, {@code false} if the nickname is already taken.
+	 */
+	boolean put(User user);
+
+	/**
+	 * Persists a change in the user's score.
+	 * Called while holding the user's score lock, after the change has been applied to the user.
+	 * @param user  the user whose score changed.
+	 * @param delta the points gained (or lost if negative).
+	 */
+	void updateScore(User user, int delta);
+
+	/**
+	 * Persists a change in the score of several users with a single write.
+	 * Called while holding the score locks of all the users, after the changes have been applied to them.
+	 * @param deltas the points each user gained (or lost if negative).
+	 */
+	void updateScores(Map<User, Integer> deltas);
+
+	/**
+	 * Persists {@code friend} being added to {@code user}'s friend list.
+	 * Called while holding the user's friend list lock, after the friend has been added.
+	 * @param user   the user.
+	 * @param friend the new friend.
+	 */
+	void addEdge(User user, User friend);
+
+	/**
+	 * Keeps {@code user} loaded until {@link #unpin(User)} is called, engines which load users on demand
+	 * must not evict pinned users. Pins are counted, a user pinned twice stays pinned until it's unpinned twice.
+	 * @param user the user to pin.
+	 */
+	void pin(User user);
+
+	/**
+	 * Allows {@code user} to be evicted again.
+	 * @param user the user to unpin.
+	 */
+	void unpin(User user);
+
+	/**
+	 * Hands every stored user to {@code action}.
+	 * Users which are not loaded may be handed out as detached copies which must not be modified.
+	 * @param action the action to perform.
+	 */
+	void forEach(Consumer<User> action);
+
+	/**
+	 * Returns the number of stored users.
+	 * @return the number of stored users.
+	 */
+	int size();
+
+	/**
+	 * Compacts the engine's on-disk state, called periodically by a {@link PeriodicTask}.
+	 */
+	void checkpoint();
+
+	/**
+	 * Writes out every change which has been buffered so far.
+	 */
+	void flush();
+
+	/**
+	 * Flushes the buffered changes and releases the engine's files.
+	 */
+	void close();
+}
@@ -0,0 +1,90 @@
+package wordquizzle.wqserver;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * The {@code TimingWheel} class implements a hashed timing wheel, it's not thread safe.
+ * <p>
+ * Time is divided in ticks and each entry is kept in the slot of the tick it's due, modulo the number of slots.
+ * Scheduling is O(1) and advancing the wheel by a tick only looks at the entries of that slot; entries due more
+ * than a whole turn later are simply looked at once per turn. There's no way to cancel an entry: whoever handles the
+ * expired entries is expected to check whether they're still relevant and reschedule them if needed.
+ * @param <T> the type of the entries.
+ */
+public class TimingWheel<T> {
+
+	private final long tick;
+	private final int mask;
+	private final ArrayList<ArrayList<T>> slots;
+	private ArrayList<T> spare = new ArrayList<>();
+	//The last tick that has been handled
+	private long cursor;
+	private int size = 0;
+
+	/**
+	 * Constructs an empty wheel.
+	 * @param tick  the length of a tick in milliseconds.
+	 * @param slots the number of slots, rounded up to a power of two.
+	 * @param now   the current time in milliseconds.
+	 */
+	public TimingWheel(long tick, int slots, long now) {
+		int length = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		this.tick = tick;
+		this.mask = length - 1;
+		this.slots = new ArrayList<>(length);
+		for (int i = 0; i < length; i++) this.slots.add(new ArrayList<>());
+		this.cursor = now / tick;
+	}
+
+	/**
+	 * Returns the length of a tick in milliseconds.
+	 * @return the length of a tick in milliseconds.
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Returns the number of entries in the wheel.
+	 * @return the number of entries in the wheel.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Schedules {@code entry} to expire at the first tick not earlier than {@code deadline}, or at the next one if
+	 * the deadline has already passed.
+	 * @param entry    the entry.
+	 * @param deadline the deadline in milliseconds.
+	 */
+	public void schedule(T entry, long deadline) {
+		long due = Math.max((deadline + tick - 1) / tick, cursor + 1);
+		slots.get((int)(due & mask)).add(entry);
+		size++;
+	}
+
+	/**
+	 * Moves the wheel forward to {@code now}, handing every entry of the slots it goes past to {@code expired}.
+	 * The entries are removed before being handed out, {@code expired} may schedule them again.
+	 * @param now     the current time in milliseconds.
+	 * @param expired what to do with the expired entries.
+	 */
+	public void advance(long now, Consumer<T> expired) {
+		long target = now / tick;
+		//There's no point in going around more than once
+		if (target - cursor > slots.size()) cursor = target - slots.size();
+		while (cursor < target) {
+			cursor++;
+			ArrayList<T> slot = slots.get((int)(cursor & mask));
+			if (slot.isEmpty()) continue;
+			//Swap in an empty slot so that entries can be rescheduled in the same one
+			slots.set((int)(cursor & mask), spare);
+			size -= slot.size();
+			for (T entry : slot) expired.accept(entry);
+			slot.clear();
+			spare = slot;
+		}
+	}
+}
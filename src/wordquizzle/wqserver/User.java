@@ -1,16 +1,18 @@
 package wordquizzle.wqserver;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
 
 import wordquizzle.Response;
 import wordquizzle.UserState;
@@ -58,8 +60,9 @@ public class User {
 			output.add("name", new JsonPrimitive(user.getName()));
 			output.add("password", new JsonPrimitive(user.getPassword()));
 			output.add("score", new JsonPrimitive(user.getScore()));
-			JsonArray friendlist = new JsonArray(user.getFriendList().size());
-			user.getFriendList().forEach((User usr) -> friendlist.add(usr.getName()));
+			List<String> friends = user.getFriendNames();
+			JsonArray friendlist = new JsonArray(friends.size());
+			friends.forEach(friendlist::add);
 			output.add("friendlist", friendlist);
 			return (JsonElement)output;
 
@@ -74,28 +77,59 @@ public class User {
 		            throws JsonParseException {
 			JsonObject obj = json.getAsJsonObject();
 			JsonArray json_friendlist = obj.getAsJsonArray("friendlist");
-			LinkedList<User> friendlist = new LinkedList<>();
-			//Build a preliminary friend list with a stub User
-			for (JsonElement elem : json_friendlist) {
-				User userstub = new User();
-				userstub.setName(elem.getAsString());
-				friendlist.add(userstub);
-			}
 			User user = new User(obj.getAsJsonPrimitive("name").getAsString(),
 			                     obj.getAsJsonPrimitive("password").getAsString(),
-			                     obj.getAsJsonPrimitive("score").getAsInt(),
-			                     friendlist);
+			                     obj.getAsJsonPrimitive("score").getAsInt());
+			for (JsonElement elem : json_friendlist) user.restoreFriend(elem.getAsString());
 			return user;
 		}
 	}
 
+	/**
+	 * Reads a user from a JSON stream, the streaming counterpart of {@link UserJsonDeserializer}.
+	 * The user's friendships are added to the {@link FriendGraph}.
+	 * @param reader the JSON reader, positioned at the beginning of the user's object.
+	 * @return the user.
+	 * @throws IOException if the stream can't be read or doesn't contain a valid user.
+	 */
+	public static User readJson(JsonReader reader) throws IOException {
+		User user = new User();
+		List<String> friends = new ArrayList<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "name":
+					user.name = reader.nextString();
+					break;
+				case "password":
+					user.password = reader.nextString();
+					break;
+				case "score":
+					user.score = reader.nextInt();
+					break;
+				case "friendlist":
+					reader.beginArray();
+					while (reader.hasNext()) friends.add(reader.nextString());
+					reader.endArray();
+					break;
+				default:
+					reader.skipValue();
+					break;
+			}
+		}
+		reader.endObject();
+		user.setName(user.name);
+		for (String friend : friends) user.restoreFriend(friend);
+		return user;
+	}
+
 	/**
 	 * Byte to hex converter.
 	 * https://www.baeldung.com/sha-256-hashing-java
 	 * @param hash hashed data.
 	 * @return hexadecimal string representing the hash.
 	 */
-	private static String bytesToHex(byte[] hash) {
+	static String bytesToHex(byte[] hash) {
 		StringBuffer hexString = new StringBuffer();
 		for (int i = 0; i < hash.length; i++) {
 		String hex = Integer.toHexString(0xff & hash[i]);
@@ -105,36 +139,46 @@ public class User {
 		return hexString.toString();
 	}
 
+	//Stamps the changes to the users' scores and friend lists, it starts from the current time so that the versions
+	//handed out before a restart are never handed out again
+	private static final AtomicLong clock = new AtomicLong(System.currentTimeMillis() * 1000);
+
 	private String name = "";
 	private String password = "";
-	private Integer score = 0;
-	private ConcurrentMap<String, User> friendlist;
-	private UserState state = UserState.OFFLINE;
+	//Written while holding scoreLock, volatile so that it can be read without taking it
+	private volatile int score = 0;
+	private Object scoreLock = new Object();
+	//Id inside the FriendGraph, which holds the user's friend list
+	private int id = -1;
+	//Volatile so that updatePin() can read them without taking their locks
+	private volatile UserState state = UserState.OFFLINE;
+	//Guards the state, it's the user's own since the states are constants shared by every user
+	private Object stateLock = new Object();
 	private EventHandler handler = null;
 	private Object challengeLock = new Object();
-	private Challenge challenge = null;
+	private volatile Challenge challenge = null;
 	private int udpPort = 0;
+	private Object pinLock = new Object();
+	private boolean pinned = false;
+	//When the user's score or friend list last changed, and when the friend list alone did
+	private volatile long version = clock.incrementAndGet();
+	private volatile long friendsVersion = version;
 
 	/**
 	 * Constructs an empty User.
 	 */
-	public User() {
-		this.friendlist = new ConcurrentHashMap<>();
-	}
+	public User() {}
 	
 	/**
-	 * Constructs a full User with a "fake" friendlist.
-	 * @param name       the user's nickname.
-	 * @param password   the user's ALREADY HASHED password
-	 * @param score      the user's score.
-	 * @param friendlist the fake friendlist
+	 * Constructs a full User, its friend list is the one stored in the {@link FriendGraph}.
+	 * @param name     the user's nickname.
+	 * @param password the user's ALREADY HASHED password
+	 * @param score    the user's score.
 	 */
-	public User(String name, String password, int score, List<User> friendlist) {
-		this.name = name;
+	public User(String name, String password, int score) {
+		setName(name);
 		this.password = password;
 		this.score = score;
-		this.friendlist = new ConcurrentHashMap<>();
-		friendlist.forEach((User user) -> this.friendlist.put(user.getName(), user));
 	}
 
 	/**
@@ -150,6 +194,15 @@ public class User {
 	 */
 	public void setName(String name) {
 		this.name = name;
+		this.id = FriendGraph.getGraph().intern(name);
+	}
+
+	/**
+	 * Returns the user's id inside the {@link FriendGraph}.
+	 * @return the user's id.
+	 */
+	public int getId() {
+		return id;
 	}
 
 	public void setHandler(EventHandler handler) {
@@ -200,9 +253,7 @@ public class User {
 	 * @return the user's cumulative score.
 	 */
 	public int getScore() {
-		synchronized(score){
-			return score;
-		}
+		return score;
 	}
 
 	/**
@@ -211,10 +262,12 @@ public class User {
 	 * @throws IllegalArgumentException if {@code points} is a negative integer.
 	 */
 	public void incrScore(int points) throws IllegalArgumentException {
-		synchronized(score) {
+		synchronized(scoreLock) {
 			if (points < 0) throw new IllegalArgumentException("argument must be a positive number");
 			score += points;
-			Database.getDatabase().updateUser(this);
+			version = clock.incrementAndGet();
+			Ranking.scoreChanged(this, score - points);
+			Database.getDatabase().scoreChanged(this, points);
 		}
 	}
 	/**
@@ -223,34 +276,87 @@ public class User {
 	 * @throws IllegalArgumentException if {@code points} is a negative integer.
 	 */
 	public void decrScore(int points) throws IllegalArgumentException {
-		synchronized (score) {
+		synchronized(scoreLock) {
 			if (points < 0) throw new IllegalArgumentException("argument must be a positive number");
 			score -= points;
-			Database.getDatabase().updateUser(this);
+			version = clock.incrementAndGet();
+			Ranking.scoreChanged(this, score + points);
+			Database.getDatabase().scoreChanged(this, -points);
 		}
 	}
 
-	/*
-	From https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/ConcurrentHashMap.html
+	/**
+	 * Adds {@code deltas} to the users' scores and persists all of the changes with a single database write.
+	 * The score locks are taken in nickname order, so concurrent calls on overlapping users can't deadlock.
+	 * @param deltas the points each user gained (or lost if negative).
+	 */
+	static void addScores(Map<User, Integer> deltas) {
+		List<User> users = new ArrayList<>(deltas.keySet());
+		users.sort(Comparator.comparing((User user) -> user.name));
+		addScores(users, 0, deltas);
+	}
+
+	private static void addScores(List<User> users, int i, Map<User, Integer> deltas) {
+		if (i == users.size()) {
+			Database.getDatabase().scoresChanged(deltas);
+			return;
+		}
+		User user = users.get(i);
+		synchronized(user.scoreLock) {
+			int oldScore = user.score;
+			user.score += deltas.get(user);
+			user.version = clock.incrementAndGet();
+			Ranking.scoreChanged(user, oldScore);
+			addScores(users, i + 1, deltas);
+		}
+	}
 
-	Iterators are designed to be used by only one thread at a time.
-	Bear in mind that the results of aggregate status methods
-	including size, isEmpty, and containsValue are typically useful only when
-	a map is not undergoing concurrent updates in other threads.
-	Otherwise the results of these methods reflect transient states
-	that may be adequate for monitoring or estimation purposes, but not for program control.
-	*/
+	/**
+	 * Sets the user's score while replaying the database change log.
+	 * @param score the user's score.
+	 */
+	void restoreScore(int score) {
+		synchronized(scoreLock) {
+			this.score = score;
+			version = clock.incrementAndGet();
+		}
+	}
 
 	/**
 	 * Returns the user's friend list.
 	 * @return the user's friend list.
 	 */
 	public List<User> getFriendList() {
-		//Must wait for an addFriend operation to finish and release the monitor
-		//in order to keep the friendlist consistent.
-		synchronized(friendlist) {
-			return new ArrayList<User>(friendlist.values());
+		FriendGraph graph = FriendGraph.getGraph();
+		int[] friendIds = graph.getFriends(id);
+		List<User> friends = new ArrayList<>(friendIds.length);
+		for (int friend : friendIds) {
+			try {
+				friends.add(Database.getDatabase().getUser(graph.getName(friend)));
+			} catch (UserNotFoundException e) {/*dangling friendship, skip it*/}
 		}
+		return friends;
+	}
+
+	/**
+	 * Returns the nicknames of the user's friends without loading them.
+	 * @return the nicknames of the user's friends.
+	 */
+	List<String> getFriendNames() {
+		FriendGraph graph = FriendGraph.getGraph();
+		int[] friendIds = graph.getFriends(id);
+		List<String> friends = new ArrayList<>(friendIds.length);
+		for (int friend : friendIds) friends.add(graph.getName(friend));
+		return friends;
+	}
+
+	/**
+	 * Returns {@code true} iff {@code user} is in the user's friend list.
+	 * @param user the user to look for.
+	 * @return {@code true} iff {@code user} is in the user's friend list.
+	 */
+	public boolean isFriend(User user) {
+		return FriendGraph.getGraph().isFriend(id, user.id);
 	}
 
 	/**
@@ -260,30 +366,43 @@ public class User {
 	 * @throws UserNotFoundException if the user doesn't exist.
 	 */
 	public void addFriend(String name) throws AlreadyFriendsException, UserNotFoundException, SelfFriendException {
-		synchronized(friendlist) {
-			User friend = Database.getDatabase().getUser(name);
-			if (friend.equals(this)) throw new SelfFriendException();
-			if (!friendlist.containsKey(friend.getName())) {
-				friendlist.put(friend.getName(), friend);
-				Database.getDatabase().updateUser(this);
-			} else throw new AlreadyFriendsException();
+		User friend = Database.getDatabase().getUser(name);
+		if (friend.equals(this)) throw new SelfFriendException();
+		if (FriendGraph.getGraph().addFriend(id, friend.id)) {
+			friendsVersion = version = clock.incrementAndGet();
+			Ranking.friendsChanged(this);
+			Database.getDatabase().friendAdded(this, friend);
 		}
+		else throw new AlreadyFriendsException();
 	}
 
 	/**
-	 * Initialize the friend list.
-	 * @throws AlreadyFriendsException if the friend list contains the user itself.
+	 * Returns the version of the user's score and friend list, which changes whenever either of them does.
+	 * The version is stamped after the change, so data read after the version is never older than it, but it may
+	 * already hold a change whose version hasn't been stamped yet: whoever caches it must take the version again
+	 * once the change is stamped.
+	 * @return the version of the user's score and friend list.
 	 */
-	public void initFriendshipRelations() throws AlreadyFriendsException {
-		synchronized(friendlist) {
-			for (User user : friendlist.values()) {
-				try {
-					User friend = Database.getDatabase().getUser(user.getName());
-					if (friendlist.remove(friend.getName(), this)) throw new AlreadyFriendsException();
-					friendlist.put(friend.getName(), friend);
-				} catch (UserNotFoundException e) {/*discard*/};
-			}
-		}
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the version of the user's friend list, which changes whenever a friend is added.
+	 * @return the version of the user's friend list.
+	 */
+	public long getFriendsVersion() {
+		return friendsVersion;
+	}
+
+	/**
+	 * Adds user {@code name} to the user's friend list while loading the database.
+	 * @param name the friend's nickname.
+	 */
+	void restoreFriend(String name) {
+		FriendGraph graph = FriendGraph.getGraph();
+		graph.addFriend(id, graph.intern(name));
+		friendsVersion = version = clock.incrementAndGet();
 	}
 
 	/**
@@ -291,24 +410,24 @@ public class User {
 	 * @param state the user's new state
 	 */
 	public void setState(UserState state) {
-		synchronized(this.state) {
+		synchronized(stateLock) {
 			try {
 				this.state = state;
 				switch (state) {
 					case OFFLINE:
-					getHandler().write(Response.SET_STATE.getCode("OFFLINE"));
+					getHandler().write(Response.SET_STATE, "OFFLINE");
 					break;
 					case IDLE:
-					getHandler().write(Response.SET_STATE.getCode("IDLE"));
+					getHandler().write(Response.SET_STATE, "IDLE");
 					break;
 					case CHALLENGED:
-					getHandler().write(Response.SET_STATE.getCode("CHALLENGED"));
+					getHandler().write(Response.SET_STATE, "CHALLENGED");
 					break;
 					case CHALLENGE_ISSUED:
-					getHandler().write(Response.SET_STATE.getCode("CHALLENGE_ISSUED"));
+					getHandler().write(Response.SET_STATE, "CHALLENGE_ISSUED");
 					break;
 					case IN_GAME:
-					getHandler().write(Response.SET_STATE.getCode("IN_GAME"));
+					getHandler().write(Response.SET_STATE, "IN_GAME");
 					break;
 				}
 			} catch (NoHandlerAssignedException e) {
@@ -316,6 +435,7 @@ public class User {
 				this.state = UserState.OFFLINE;
 			}
 		}
+		updatePin();
 	}
 
 	/**
@@ -323,7 +443,7 @@ public class User {
 	 * @return the user's current state.
 	 */
 	public UserState getState() {
-		synchronized(this.state) {
+		synchronized(stateLock) {
 			return this.state;
 		}
 	}
@@ -336,6 +456,7 @@ public class User {
 		synchronized(challengeLock) {
 			this.challenge = challenge;
 		}
+		updatePin();
 	}
 
 	/**
@@ -366,17 +487,35 @@ public class User {
 		}
 		setState(UserState.OFFLINE);
 		setHandler(null);
+		Ranking.evict(this);
 	}
 
 	public void logoutNoNotify() {
-		synchronized(this.state) {
-			if (getChallenge() != null) {
-				getChallenge().abortChallenge(this);
-				setChallenge(null);
-			}
+		//Abort the challenge before taking the state lock, the challenge changes the players' states
+		Challenge challenge = getChallenge();
+		if (challenge != null) {
+			challenge.abortChallenge(this);
+			setChallenge(null);
+		}
+		synchronized(stateLock) {
 			this.state = UserState.OFFLINE;
 			setHandler(null);
 		}
+		Ranking.evict(this);
+		updatePin();
+	}
+
+	/**
+	 * Keeps the user loaded by the storage engine for as long as it's online or playing a challenge.
+	 */
+	private void updatePin() {
+		synchronized(pinLock) {
+			boolean pin = state != UserState.OFFLINE || challenge != null;
+			if (pin == pinned) return;
+			pinned = pin;
+			if (pin) Database.getDatabase().getEngine().pin(this);
+			else Database.getDatabase().getEngine().unpin(this);
+		}
 	}
 
 	/**
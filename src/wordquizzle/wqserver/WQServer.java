@@ -15,9 +15,11 @@ public class WQServer {
 		class Shutdown extends Thread {
 			@Override
 			public void run() {
-				Acceptor acceptor;
-				if ((acceptor = Acceptor.getAcceptor()) != null) acceptor.close();
-				for (Reactor reactor : Reactor.reactors) reactor.close();
+				Acceptor.closeAll();
+				BlockingAcceptor.close();
+				if (Reactor.reactors != null) for (Reactor reactor : Reactor.reactors) reactor.close();
+				WorkerPool.shutdown();
+				Database.shutdown();
 				Random rand = new Random(System.nanoTime());
 				switch(rand.nextInt(3)) {
 					case 0:
@@ -55,16 +57,21 @@ public class WQServer {
 		//Initialize the RMI registry
 		new RegisterServerHandler().initHandler(WQRegisterInterface.port);
 
+		//One thread per connection, no reactors needed
+		if (Config.TRANSPORT.equals("threads")) {
+			BlockingAcceptor.start(port);
+			return;
+		}
+
 		//Start up all the reactors
-		Reactor.reactors = new Reactor[4];
+		Reactor.reactors = new Reactor[Math.max(1, Config.REACTORS)];
 		for (int i = 0; i < Reactor.reactors.length; i++) {
 			Reactor.reactors[i] = new Reactor();
 			Reactor.reactors[i].start();
 		}
 
-		//Start up the connection acceptor
-		Acceptor acceptor = Acceptor.getAcceptor();
-		acceptor.start(port);
+		//Start up the connection acceptors
+		Acceptor.start(port);
 
 	}
 }
\ No newline at end of file
@@ -0,0 +1,218 @@
+package wordquizzle.wqserver;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wordquizzle.Logger;
+import wordquizzle.Response;
+
+/**
+ * The {@code WorkerPool} class runs the commands received by the reactors as a Singleton, so that a slow command
+ * never holds up the other connections of a reactor.
+ * <p>
+ * The pool is made of {@link Config#WORKERS} stripes, each one a single thread with a queue of at most
+ * {@link Config#WORKER_QUEUE} commands. All the commands of a connection go to the same stripe so they're run in
+ * the order they've been received. When a stripe's queue is full the command is dropped and the client is answered
+ * with {@code SERVER_BUSY}. The queues hold the messages and their connections in preallocated rings, so that
+ * queueing a command allocates nothing.
+ */
+public class WorkerPool {
+
+	/**
+	 * The {@code Stripe} class is a worker thread with its own bounded queue of commands.
+	 */
+	private class Stripe extends Thread {
+		//The queued messages and the connections they've been received by, guarded by this
+		private final EventHandler[] handlers;
+		private final String[] frames;
+		private int head = 0;
+		private int size = 0;
+		private boolean closed = false;
+
+		Stripe(String name, int capacity) {
+			super(name);
+			this.handlers = new EventHandler[capacity];
+			this.frames = new String[capacity];
+			setDaemon(true);
+		}
+
+		/**
+		 * Queues a message received by {@code evh}.
+		 * @return the number of queued messages, {@code 0} if the queue is full or the stripe has been closed.
+		 */
+		synchronized int offer(EventHandler evh, String frame) {
+			if (closed || size == frames.length) return 0;
+			int tail = (head + size) % frames.length;
+			handlers[tail] = evh;
+			frames[tail] = frame;
+			size++;
+			notify();
+			return size;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * Stops the stripe once the queued commands have been run.
+		 */
+		synchronized void close() {
+			closed = true;
+			notify();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				EventHandler evh;
+				String frame;
+				synchronized(this) {
+					try {
+						while (size == 0 && !closed) wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (size == 0) return;
+					evh = handlers[head];
+					frame = frames[head];
+					handlers[head] = null;
+					frames[head] = null;
+					head = (head + 1) % frames.length;
+					size--;
+				}
+				try {
+					evh.compute(frame);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				executed.incrementAndGet();
+			}
+		}
+	}
+
+	private static volatile WorkerPool pool;
+
+	private Stripe[] stripes;
+	private AtomicInteger maxDepth = new AtomicInteger(0);
+	private AtomicLong executed = new AtomicLong(0);
+	private AtomicLong rejected = new AtomicLong(0);
+	//Counters at the time of the last stats log
+	private long lastExecuted = 0;
+	private long lastRejected = 0;
+	private Timer statsTimer;
+
+	private WorkerPool(int workers, int queueSize) {
+		stripes = new Stripe[workers];
+		for (int i = 0; i < workers; i++) {
+			stripes[i] = new Stripe("Worker " + i, Math.max(1, queueSize));
+			stripes[i].start();
+		}
+		if (Config.WORKER_STATS_INTERVAL > 0) {
+			statsTimer = new Timer("workerStats", true);
+			statsTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					logStats();
+				}
+			}, Config.WORKER_STATS_INTERVAL, Config.WORKER_STATS_INTERVAL);
+		}
+	}
+
+	/**
+	 * Return the worker pool singleton
+	 * @return worker pool singleton
+	 */
+	public static WorkerPool getPool() {
+		if (pool == null) {
+			synchronized(WorkerPool.class) {
+				if (pool == null) pool = new WorkerPool(Math.max(1, Config.WORKERS), Config.WORKER_QUEUE);
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Queues a command received by {@code evh}, to be handled by {@link EventHandler#compute(String)}, answering
+	 * {@code SERVER_BUSY} if the queue is full.
+	 * @param evh   the connection the command has been received by.
+	 * @param frame the command, without the delimiter.
+	 */
+	public void execute(EventHandler evh, String frame) {
+		Stripe stripe = stripes[Math.floorMod(System.identityHashCode(evh), stripes.length)];
+		int depth = stripe.offer(evh, frame);
+		if (depth == 0) {
+			rejected.incrementAndGet();
+			evh.write(Response.SERVER_BUSY);
+			return;
+		}
+		if (depth > maxDepth.get()) maxDepth.accumulateAndGet(depth, Math::max);
+	}
+
+	/**
+	 * Returns the number of commands waiting to be run.
+	 * @return the number of commands waiting to be run.
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Stripe stripe : stripes) depth += stripe.size();
+		return depth;
+	}
+
+	/**
+	 * Returns the deepest any stripe's queue has been since the last call, and resets it.
+	 * @return the maximum queue depth.
+	 */
+	public int getMaxQueueDepth() {
+		return maxDepth.getAndSet(0);
+	}
+
+	/**
+	 * Returns the number of commands run so far.
+	 * @return the number of commands run so far.
+	 */
+	public long getExecuted() {
+		return executed.get();
+	}
+
+	/**
+	 * Returns the number of commands dropped so far because their stripe's queue was full.
+	 * @return the number of commands dropped so far.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Logs the queue depth and how many commands have been run and dropped since the last time, if any.
+	 */
+	private void logStats() {
+		long executed = getExecuted();
+		long rejected = getRejected();
+		if (executed == lastExecuted && rejected == lastRejected) return;
+		Logger.logInfo("Workers: ", executed - lastExecuted, " commands run, ", rejected - lastRejected,
+		               " dropped; queued ", getQueueDepth(), ", max ", getMaxQueueDepth());
+		lastExecuted = executed;
+		lastRejected = rejected;
+	}
+
+	/**
+	 * Stops the workers, waiting a little for them to run the queued commands.
+	 */
+	public void close() {
+		if (statsTimer != null) statsTimer.cancel();
+		for (Stripe stripe : stripes) stripe.close();
+		try {
+			for (Stripe stripe : stripes) stripe.join(1000);
+		} catch (InterruptedException e) {/*discard*/}
+	}
+
+	/**
+	 * Closes the worker pool if it has been started.
+	 */
+	public static void shutdown() {
+		if (pool != null) pool.close();
+	}
+}